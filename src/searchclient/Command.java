@@ -1,5 +1,9 @@
 package searchclient;
 
+/**
+ * There are only 29 distinct single-agent commands, so each has one shared instance with a small id. Joint actions are
+ * stored as byte arrays of command ids indexed by agent id; since NoOp has id 0, a new byte array is a joint NoOp.
+ */
 public abstract class Command {
 	public enum Dir {
 		N(-1, 0),
@@ -21,9 +25,88 @@ public abstract class Command {
 		public int getDeltaCol() {
 			return this.deltaCol;
 		}
+
+		public boolean isOpposite(Dir other) {
+			return this.deltaRow == -other.deltaRow && this.deltaCol == -other.deltaCol;
+		}
+	}
+
+	public enum Kind {
+		NoOp, Move, Push, Pull
+	}
+
+	public static final int NUM_COMMANDS = 29;
+
+	private static final Dir[] DIRS = Dir.values();
+	private static final Command[] COMMANDS = new Command[NUM_COMMANDS];
+	private static final Command[] MOVES = new Command[DIRS.length];
+	// Indexed by [agentDir][boxDir], null for the combinations that would move the box into the agent
+	private static final Command[][] PUSHES = new Command[DIRS.length][DIRS.length];
+	private static final Command[][] PULLS = new Command[DIRS.length][DIRS.length];
+
+	public static final Command NOOP;
+
+	static {
+		int id = 0;
+		NOOP = COMMANDS[id] = new NoOp(id++);
+		for (Dir agentDir : DIRS)
+			MOVES[agentDir.ordinal()] = COMMANDS[id] = new Move(id++, agentDir);
+		for (Dir agentDir : DIRS)
+			for (Dir boxDir : DIRS)
+				if (!agentDir.isOpposite(boxDir))
+					PUSHES[agentDir.ordinal()][boxDir.ordinal()] = COMMANDS[id] = new Push(id++, agentDir, boxDir);
+		for (Dir agentDir : DIRS)
+			for (Dir boxDir : DIRS)
+				if (agentDir != boxDir)
+					PULLS[agentDir.ordinal()][boxDir.ordinal()] = COMMANDS[id] = new Pull(id++, agentDir, boxDir);
+		assert id == NUM_COMMANDS;
+	}
+
+	public final byte id;
+	public final Kind kind;
+
+	private Command(int id, Kind kind) {
+		this.id = (byte) id;
+		this.kind = kind;
+	}
+
+	public static Command get(int id) {
+		return COMMANDS[id];
+	}
+
+	public static Command move(Dir agentDir) {
+		return MOVES[agentDir.ordinal()];
+	}
+
+	public static Command push(Dir agentDir, Dir boxDir) {
+		return PUSHES[agentDir.ordinal()][boxDir.ordinal()];
+	}
+
+	public static Command pull(Dir agentDir, Dir boxDir) {
+		return PULLS[agentDir.ordinal()][boxDir.ordinal()];
+	}
+
+	/**
+	 * Formats a joint action like a list of commands, e.g. [Move(N), NoOp].
+	 */
+	public static String toString(byte[] jointAction) {
+		if (jointAction == null)
+			return "null";
+
+		StringBuilder s = new StringBuilder("[");
+		for (int i = 0; i < jointAction.length; i++) {
+			if (i > 0)
+				s.append(", ");
+			s.append(COMMANDS[jointAction[i]]);
+		}
+		return s.append(']').toString();
 	}
 
 	public static class NoOp extends Command {
+		private NoOp(int id) {
+			super(id, Kind.NoOp);
+		}
+
 		@Override
 		public String toString() {
 			return "NoOp";
@@ -33,7 +116,8 @@ public abstract class Command {
 	public static class Move extends Command {
 		private final Dir agentDir;
 
-		public Move(Dir agentDir) {
+		private Move(int id, Dir agentDir) {
+			super(id, Kind.Move);
 			this.agentDir = agentDir;
 		}
 
@@ -51,7 +135,8 @@ public abstract class Command {
 		private final Dir agentDir;
 		private final Dir boxDir;
 
-		public Push(Dir agentDir, Dir boxDir) {
+		private Push(int id, Dir agentDir, Dir boxDir) {
+			super(id, Kind.Push);
 			this.agentDir = agentDir;
 			this.boxDir = boxDir;
 		}
@@ -74,7 +159,8 @@ public abstract class Command {
 		private final Dir agentDir;
 		private final Dir boxDir;
 
-		public Pull(Dir agentDir, Dir boxDir) {
+		private Pull(int id, Dir agentDir, Dir boxDir) {
+			super(id, Kind.Pull);
 			this.agentDir = agentDir;
 			this.boxDir = boxDir;
 		}
@@ -17,11 +17,14 @@ public class Communicator {
 		this.serverWriter = serverWriter;
 	}
 
-	public List<Boolean> send(List<Command> jointAction) throws IOException {
-		this.serverWriter.println(
-			jointAction.stream()
-				.map(Command::toString)
-				.collect(Collectors.joining(";")));
+	public List<Boolean> send(byte[] jointAction) throws IOException {
+		StringBuilder message = new StringBuilder();
+		for (int i = 0; i < jointAction.length; i++) {
+			if (i > 0)
+				message.append(';');
+			message.append(Command.get(jointAction[i]));
+		}
+		this.serverWriter.println(message);
 
 		return Arrays.stream(this.serverReader.readLine().split(";")).map(Boolean::parseBoolean).collect(Collectors.toList());
 	}
@@ -0,0 +1,178 @@
+package searchclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Shortest path distances between all pairs of free cells of a level, ignoring boxes and agents. The table depends
+ * only on the wall layout, so it is stored in a cache file named after a hash of the layout and memory-mapped by later
+ * runs on the same map instead of being computed again.
+ */
+public class DistanceTable {
+	public static final int UNREACHABLE = -1;
+	// Keeps numCells^2 within an int index and every distance within a short
+	public static final int MAX_CELLS = 1 << 15;
+
+	// Changed whenever the file format changes, so stale cache files are not loaded
+	private static final int MAGIC = 0x44495355;
+	// Magic, width, height and cell count, followed by the wall bitmap
+	private static final int HEADER_INTS = 4;
+	static final Path CACHE_DIR = Paths.get(System.getProperty("java.io.tmpdir"), "searchclient");
+
+	private final int numCells;
+	// Distance from cell a to cell b is distances.get(a * numCells + b), or UNREACHABLE
+	private final ShortBuffer distances;
+
+	private DistanceTable(int numCells, ShortBuffer distances) {
+		this.numCells = numCells;
+		this.distances = distances;
+	}
+
+	/**
+	 * Returns the length of a shortest path between the cells, or UNREACHABLE if walls separate them.
+	 */
+	public int distance(int from, int to) {
+		return this.distances.get(from * this.numCells + to);
+	}
+
+	/**
+	 * Loads the table of the level's layout from the cache, or computes it with one BFS per cell in parallel and stores
+	 * it. If the cache cannot be used, the table is computed and kept on the heap.
+	 */
+	static DistanceTable of(Level level) {
+		int numCells = level.getCellCount();
+		assert numCells <= MAX_CELLS;
+		Path file = CACHE_DIR.resolve(String.format("dist-%016x.bin", layoutHash(level)));
+
+		try {
+			DistanceTable table = load(file, level);
+			if (table != null)
+				return table;
+		} catch (IOException e) {
+			System.err.format("Could not read distance table %s: %s\n", file, e);
+		}
+
+		short[] distances = compute(level);
+		try {
+			store(file, level, distances);
+		} catch (IOException e) {
+			System.err.format("Could not write distance table %s: %s\n", file, e);
+		}
+		return new DistanceTable(numCells, ShortBuffer.wrap(distances));
+	}
+
+	private static short[] compute(Level level) {
+		int numCells = level.getCellCount();
+		short[] distances = new short[numCells * numCells];
+
+		IntStream.range(0, numCells).parallel().forEach(source -> {
+			int offset = source * numCells;
+			for (int cell = 0; cell < numCells; cell++)
+				distances[offset + cell] = UNREACHABLE;
+
+			int[] queue = new int[numCells];
+			int head = 0, tail = 0;
+			distances[offset + source] = 0;
+			queue[tail++] = source;
+			while (head < tail) {
+				int cell = queue[head++];
+				short dist = (short) (distances[offset + cell] + 1);
+				for (Command.Dir dir : Command.Dir.values()) {
+					int next = level.neighbour(cell, dir);
+					if (next != -1 && distances[offset + next] == UNREACHABLE) {
+						distances[offset + next] = dist;
+						queue[tail++] = next;
+					}
+				}
+			}
+		});
+		return distances;
+	}
+
+	private static DistanceTable load(Path file, Level level) throws IOException {
+		if (!Files.isRegularFile(file))
+			return null;
+
+		int numCells = level.getCellCount();
+		byte[] walls = wallBitmap(level);
+		int headerBytes = 4 * HEADER_INTS + walls.length;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() != headerBytes + 2L * numCells * numCells)
+				return null;
+
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != level.width || buffer.getInt(8) != level.height
+				|| buffer.getInt(12) != numCells)
+				return null;
+
+			// A hash collision between layouts of the same size is caught by comparing the walls themselves
+			byte[] fileWalls = new byte[walls.length];
+			buffer.position(4 * HEADER_INTS);
+			buffer.get(fileWalls);
+			if (!Arrays.equals(walls, fileWalls))
+				return null;
+
+			buffer.position(headerBytes);
+			return new DistanceTable(numCells, buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer());
+		}
+	}
+
+	/**
+	 * Writes the table to a temporary file that is then moved into place, so concurrent runs never see half a table.
+	 */
+	private static void store(Path file, Level level, short[] distances) throws IOException {
+		Files.createDirectories(CACHE_DIR);
+		Path tmp = Files.createTempFile(CACHE_DIR, "dist-", ".tmp");
+		try {
+			byte[] walls = wallBitmap(level);
+			ByteBuffer buffer = ByteBuffer.allocate(4 * HEADER_INTS + walls.length + 2 * distances.length).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC).putInt(level.width).putInt(level.height).putInt(level.getCellCount());
+			buffer.put(walls);
+			buffer.asShortBuffer().put(distances);
+			Files.write(tmp, buffer.array());
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * One bit per grid cell, set for walls, in row-major order.
+	 */
+	static byte[] wallBitmap(Level level) {
+		byte[] walls = new byte[(level.width * level.height + 7) / 8];
+		for (int row = 0; row < level.height; row++) {
+			for (int col = 0; col < level.width; col++) {
+				int i = row * level.width + col;
+				if (level.isWall(row, col))
+					walls[i / 8] |= 1 << (i % 8);
+			}
+		}
+		return walls;
+	}
+
+	/**
+	 * FNV-1a over the dimensions and the wall bit of every grid cell.
+	 */
+	static long layoutHash(Level level) {
+		long hash = 0xCBF29CE484222325L;
+		hash = (hash ^ level.width) * 0x100000001B3L;
+		hash = (hash ^ level.height) * 0x100000001B3L;
+		for (int row = 0; row < level.height; row++)
+			for (int col = 0; col < level.width; col++)
+				hash = (hash ^ (level.isWall(row, col) ? 1 : 0)) * 0x100000001B3L;
+		return hash;
+	}
+}
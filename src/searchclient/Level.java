@@ -0,0 +1,356 @@
+package searchclient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The static part of a level: walls, goals and colours. It is built once by Main.parseLevel (and once per region by
+ * Main.splitLevel) and shared by every state of a search, so states only have to describe where agents and boxes are.
+ *
+ * Every free cell gets a small int id. Ids are handed out row by row from the top-left corner, so sorting cell ids
+ * sorts positions. The neighbour table lets the search move between cells without allocating Positions.
+ */
+public class Level {
+	private static final long ZOBRIST_SEED = 0x5EED_2019L;
+	private static final Command.Dir[] DIRS = Command.Dir.values();
+
+	public final String domain;
+	public final int height, width;
+	public final int numAgents;
+
+	// Cell ids of the full grid, indexed by row * width + col, -1 for walls
+	private final int[] cellIds;
+
+	// Indexed by cell id
+	private final Position[] positions;
+	// Neighbour of cell c in direction d is neighbours[c * 4 + d.ordinal()], or -1 if it is a wall
+	private final int[] neighbours;
+	// Goal letter or digit of each cell, 0 if the cell is not a goal
+	private final char[] goals;
+	private final int[] goalCells;
+	// Goal cells indexed by goal character
+	private final int[][] goalCellsByType;
+
+	// Colour id of each agent and box character, -1 for characters without a colour
+	private final int[] colors;
+	private final List<String> colorNames;
+
+	// Zobrist keys: one random 64-bit key per (agent, cell) and per (box letter, cell). A state's key is the XOR of the
+	// keys of all its objects, so moving an object only costs two XORs.
+	private final long[] agentKeys;
+	private final long[] boxKeys;
+
+	// Tunnel cells per axis: tunnels[c * 2] if c has walls to the west and east (a north-south tunnel), tunnels[c * 2 + 1]
+	// if it has walls to the north and south
+	private final boolean[] tunnels;
+
+	// Distance from each cell to the nearest goal of a goal character, computed on first use
+	private final int[][] goalDistances = new int[128][];
+	// Pattern databases by pair of letters (a * 128 + b), loaded on first use
+	private final ConcurrentHashMap<Integer, PairDatabase> pairDatabases = new ConcurrentHashMap<>();
+	// All-pairs distances, loaded on first use
+	private DistanceTable distances;
+
+	// Dead squares per box letter (offset from 'A'), null for letters that are not pruned. Set once by the initial state.
+	private final boolean[][] deadSquares = new boolean[26][];
+	private boolean deadSquaresComputed;
+
+	/**
+	 * Builds a level from its wall layout and goal characters, both indexed by row * width + col.
+	 */
+	public Level(String domain, int width, int height, int numAgents, boolean[] walls, char[] goals, Map<Character, String> colors) {
+		this(domain, width, height, numAgents, walls, goals, new int[128], new ArrayList<>());
+
+		Arrays.fill(this.colors, -1);
+		for (Map.Entry<Character, String> entry : colors.entrySet()) {
+			int id = this.colorNames.indexOf(entry.getValue());
+			if (id == -1) {
+				id = this.colorNames.size();
+				this.colorNames.add(entry.getValue());
+			}
+			this.colors[entry.getKey()] = id;
+		}
+	}
+
+	private Level(String domain, int width, int height, int numAgents, boolean[] walls, char[] goals, int[] colors, List<String> colorNames) {
+		this.domain = domain;
+		this.width = width;
+		this.height = height;
+		this.numAgents = numAgents;
+		this.colors = colors;
+		this.colorNames = colorNames;
+
+		this.cellIds = new int[walls.length];
+		int numCells = 0;
+		for (int i = 0; i < walls.length; i++)
+			this.cellIds[i] = walls[i] ? -1 : numCells++;
+
+		this.positions = new Position[numCells];
+		this.neighbours = new int[numCells * DIRS.length];
+		this.goals = new char[numCells];
+		for (int row = 0; row < height; row++) {
+			for (int col = 0; col < width; col++) {
+				int cell = this.cellIds[row * width + col];
+				if (cell == -1)
+					continue;
+
+				this.positions[cell] = new Position(row, col);
+				this.goals[cell] = goals[row * width + col];
+				for (Command.Dir dir : DIRS)
+					this.neighbours[cell * DIRS.length + dir.ordinal()] = this.cellAt(row + dir.getDeltaRow(), col + dir.getDeltaCol());
+			}
+		}
+
+		this.tunnels = new boolean[numCells * 2];
+		for (int cell = 0; cell < numCells; cell++) {
+			this.tunnels[cell * 2] = this.neighbour(cell, Command.Dir.W) == -1 && this.neighbour(cell, Command.Dir.E) == -1;
+			this.tunnels[cell * 2 + 1] = this.neighbour(cell, Command.Dir.N) == -1 && this.neighbour(cell, Command.Dir.S) == -1;
+		}
+
+		List<Integer> goalCells = new ArrayList<>();
+		int[] goalCounts = new int[128];
+		for (int cell = 0; cell < numCells; cell++) {
+			if (this.goals[cell] != 0) {
+				goalCells.add(cell);
+				goalCounts[this.goals[cell]]++;
+			}
+		}
+		this.goalCells = goalCells.stream().mapToInt(Integer::intValue).toArray();
+
+		this.goalCellsByType = new int[128][];
+		for (int type = 0; type < 128; type++)
+			this.goalCellsByType[type] = new int[goalCounts[type]];
+		for (int cell : this.goalCells) {
+			char type = this.goals[cell];
+			this.goalCellsByType[type][this.goalCellsByType[type].length - goalCounts[type]--] = cell;
+		}
+
+		Random random = new Random(ZOBRIST_SEED);
+		this.agentKeys = new long[numAgents * numCells];
+		this.boxKeys = new long[26 * numCells];
+		for (int i = 0; i < this.agentKeys.length; i++)
+			this.agentKeys[i] = random.nextLong();
+		for (int i = 0; i < this.boxKeys.length; i++)
+			this.boxKeys[i] = random.nextLong();
+	}
+
+	/**
+	 * Returns a level with the same colours and agents but a different layout, e.g. a single region of this level.
+	 */
+	public Level withLayout(boolean[] walls, char[] goals) {
+		return new Level(this.domain, this.width, this.height, this.numAgents, walls, goals, this.colors, this.colorNames);
+	}
+
+	/**
+	 * Number of free cells, i.e. one more than the largest cell id.
+	 */
+	public int getCellCount() {
+		return this.positions.length;
+	}
+
+	public boolean isWall(int row, int col) {
+		return this.cellAt(row, col) == -1;
+	}
+
+	/**
+	 * Returns the id of the cell at (row, col), or -1 if it is a wall or outside the level.
+	 */
+	public int cellAt(int row, int col) {
+		if (row < 0 || row >= this.height || col < 0 || col >= this.width)
+			return -1;
+		return this.cellIds[row * this.width + col];
+	}
+
+	public int cellOf(Position pos) {
+		return this.cellAt(pos.getRow(), pos.getCol());
+	}
+
+	/**
+	 * Returns the shared Position instance of a cell.
+	 */
+	public Position positionOf(int cell) {
+		return this.positions[cell];
+	}
+
+	/**
+	 * Returns the cell next to the given cell in direction dir, or -1 if that is a wall.
+	 */
+	public int neighbour(int cell, Command.Dir dir) {
+		return this.neighbours[cell * DIRS.length + dir.ordinal()];
+	}
+
+	/**
+	 * Returns the goal character of the given cell, or 0 if the cell is not a goal.
+	 */
+	public char goalAt(int cell) {
+		return this.goals[cell];
+	}
+
+	public int[] getGoalCells() {
+		return this.goalCells;
+	}
+
+	public int[] getGoalCells(char type) {
+		return this.goalCellsByType[type];
+	}
+
+	/**
+	 * Returns the colour id of an agent or box character, or -1 if it has no colour.
+	 */
+	public int getColor(char c) {
+		return this.colors[c];
+	}
+
+	public int getAgentColor(int agentId) {
+		return this.colors['0' + agentId];
+	}
+
+	public String getColorName(int color) {
+		return this.colorNames.get(color);
+	}
+
+	public long agentKey(int agentId, int cell) {
+		return this.agentKeys[agentId * this.positions.length + cell];
+	}
+
+	/**
+	 * Zobrist key of a box, with the type given as an offset from 'A'.
+	 */
+	public long boxKey(int type, int cell) {
+		return this.boxKeys[type * this.positions.length + cell];
+	}
+
+	/**
+	 * Returns the distance from every cell to the nearest goal of the given character, or null if there is no such goal.
+	 * Cells that cannot reach such a goal get DistanceTable.UNREACHABLE. The distances are computed once per level with
+	 * a multi-source BFS from all the goals.
+	 */
+	public synchronized int[] getGoalDistances(char type) {
+		if (this.goalDistances[type] != null || this.goalCellsByType[type].length == 0)
+			return this.goalDistances[type];
+
+		int numCells = this.getCellCount();
+		int[] distances = new int[numCells];
+		Arrays.fill(distances, DistanceTable.UNREACHABLE);
+
+		int[] queue = new int[numCells];
+		int head = 0, tail = 0;
+		for (int goalCell : this.goalCellsByType[type]) {
+			distances[goalCell] = 0;
+			queue[tail++] = goalCell;
+		}
+		while (head < tail) {
+			int cell = queue[head++];
+			for (Command.Dir dir : DIRS) {
+				int next = this.neighbour(cell, dir);
+				if (next != -1 && distances[next] == DistanceTable.UNREACHABLE) {
+					distances[next] = distances[cell] + 1;
+					queue[tail++] = next;
+				}
+			}
+		}
+		return this.goalDistances[type] = distances;
+	}
+
+	/**
+	 * Returns the shortest path distances between the cells of this level, loading or computing them on first use.
+	 */
+	public synchronized DistanceTable getDistances() {
+		if (this.distances == null)
+			this.distances = DistanceTable.of(this);
+		return this.distances;
+	}
+
+	/**
+	 * Returns the pattern database of a box of letter a and a box of letter b, loading or computing it on first use. Both
+	 * letters must have goals, and the level must have at most PairDatabase.MAX_CELLS cells. Databases of different
+	 * letters can be loaded concurrently.
+	 */
+	public PairDatabase getPairDatabase(char a, char b) {
+		return this.pairDatabases.computeIfAbsent(a * 128 + b, key -> PairDatabase.of(this, a, b));
+	}
+
+	/**
+	 * Returns true if the cell is part of a one-wide tunnel running in direction dir, i.e. it has walls on both sides
+	 * perpendicular to dir.
+	 */
+	public boolean isTunnel(int cell, Command.Dir dir) {
+		return this.tunnels[cell * 2 + (dir.getDeltaRow() == 0 ? 1 : 0)];
+	}
+
+	/**
+	 * Computes the dead squares of every box letter that has goals and no more boxes than goals, so every box of the
+	 * letter has to end up on a goal. A dead square is a cell from which a box can never be moved onto a goal of its
+	 * letter, whatever other boxes and agents do. Called by the initial state of the level with its box counts; the
+	 * table is only computed once per level.
+	 *
+	 * A box can move from c to a free neighbour c' if an agent can push it, i.e. c has a neighbour other than c' for the
+	 * agent to push from, or pull it, i.e. c' has a neighbour other than c for the agent to back into. Pushes and pulls
+	 * need not go in a straight line.
+	 */
+	synchronized void initDeadSquares(int[] boxCounts) {
+		if (this.deadSquaresComputed)
+			return;
+		this.deadSquaresComputed = true;
+
+		int numCells = this.getCellCount();
+		int[] queue = new int[numCells];
+
+		for (int type = 0; type < 26; type++) {
+			int[] goalCells = this.goalCellsByType['A' + type];
+			if (boxCounts[type] == 0 || goalCells.length == 0 || boxCounts[type] > goalCells.length)
+				continue;
+
+			// Backwards from the goals: cell c is live if a box on it can move to a live cell
+			boolean[] live = new boolean[numCells];
+			int head = 0, tail = 0;
+			for (int goalCell : goalCells) {
+				live[goalCell] = true;
+				queue[tail++] = goalCell;
+			}
+			while (head < tail) {
+				int to = queue[head++];
+				for (Command.Dir dir : DIRS) {
+					int from = this.neighbour(to, dir);
+					if (from == -1 || live[from])
+						continue;
+
+					if (this.hasNeighbourOtherThan(from, to) || this.hasNeighbourOtherThan(to, from)) {
+						live[from] = true;
+						queue[tail++] = from;
+					}
+				}
+			}
+
+			boolean[] dead = new boolean[numCells];
+			for (int cell = 0; cell < numCells; cell++)
+				dead[cell] = !live[cell];
+			this.deadSquares[type] = dead;
+		}
+	}
+
+	private boolean hasNeighbourOtherThan(int cell, int other) {
+		for (Command.Dir dir : DIRS) {
+			int neighbour = this.neighbour(cell, dir);
+			if (neighbour != -1 && neighbour != other)
+				return true;
+		}
+		return false;
+	}
+
+	static Command.Dir opposite(Command.Dir dir) {
+		return DIRS[DIRS.length - 1 - dir.ordinal()];
+	}
+
+	/**
+	 * Returns true if a box of the given letter (offset from 'A') can never reach a goal from the cell.
+	 */
+	public boolean isDeadSquare(int type, int cell) {
+		boolean[] dead = this.deadSquares[type];
+		return dead != null && dead[cell];
+	}
+}
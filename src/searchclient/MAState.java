@@ -1,136 +1,197 @@
 package searchclient;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class MAState {
-	private static final Random RNG = new Random(1);
-
-	public int numAgents;
-	public int height, width;
-	public final String domain;
-
-	// Arrays are indexed from the top-left of the level, with first index being row and second being column.
-	// Row 0: (0,0) (0,1) (0,2) (0,3) ...
-	// Row 1: (1,0) (1,1) (1,2) (1,3) ...
-	// Row 2: (2,0) (2,1) (2,2) (2,3) ...
-	// ...
-	// (Start in the top left corner, first go down, then go right)
-	// E.g. this.walls[2] is an array of booleans having size MAX_COL.
-	// this.walls[row][col] is true if there's a wall at (row, col)
-	//
-
-	public final Set<Position> walls;
-	public final TreeMap<Position, Character> boxes;
-	public final Map<Position, Character> goals;
-
-	public final TreeMap<Position, Character> agents;
-	public final Map<Character, String> color;
+	private static final Command.Dir[] DIRS = Command.Dir.values();
+
+	public final Level level;
+
+	private static final int[] NO_MOVES = new int[0];
+
+	// Reverse indexes from cell to occupant of the states being expanded on each thread, one for the state and one for
+	// the state the other agents' commands lead to. All zero between uses; see fillOccupancy
+	private static final ThreadLocal<char[][]> OCCUPANCY = ThreadLocal.withInitial(() -> new char[2][0]);
+
+	// Packed object layout, using the cell numbering of the level.
+	// agentCells is indexed by agent id and holds -1 for agents that are not part of this (sub-)level.
+	// boxCells is kept sorted so that equal states have equal arrays; boxTypes[i] is the letter of the box at boxCells[i],
+	// stored as an offset from 'A'.
+	// A successor only records what its joint action moved, and builds these arrays from its parent's the first time they
+	// are needed (normally when it is expanded). Arrays of a kind of object that did not move are shared with the parent.
+	// Written last when materialising, and volatile so that a state shared between concurrent searches is never seen
+	// half built
+	private volatile int[] agentCells;
+	private int[] boxCells;
+	private byte[] boxTypes;
+	// Pairs of (agent id, new cell)
+	private int[] agentMoves;
+	// Pairs of (old cell, new cell)
+	private int[] boxMoves;
+	// Zobrist key of the agent and box layout, updated incrementally from the parent's key
+	private long key;
 
 	public MAState parent;
-	public final List<Command> actions;
+	// Command ids of the joint action that led to this state, indexed by agent id; shared, so never modified
+	public final byte[] actions;
 
 	private int g;
 
-	public MAState(MAState parent, List<Command> actions) {
-		this.actions = new ArrayList<>(actions);
-		this.domain = parent.domain;
+	// h and f as computed by the Heuristic of the search the state was last evaluated in
+	private Evaluation evaluation;
+
+	public MAState(MAState parent, byte[] actions) {
+		this.actions = actions;
+		this.level = parent.level;
 		this.parent = parent;
 		this.g = parent.g() + 1;
-		this.height = parent.height;
-		this.width = parent.width;
-		this.walls = parent.walls;
-		this.boxes = new TreeMap<>(parent.boxes);
-		this.goals = parent.goals;
-		this.agents = new TreeMap<>(parent.agents);
-		this.color = parent.color;
-		this.numAgents = parent.numAgents;
+		this.key = parent.key;
 
 		this.applyActions(actions);
 	}
 
-	public MAState(int width, int height, String domain) {
-		this.domain = domain;
+	public MAState(Level level, Map<Position, Character> agents, Map<Position, Character> boxes) {
+		this.level = level;
 		this.parent = null;
 		this.actions = null;
 		this.g = 0;
-		this.width = width;
-		this.height = height;
-		this.walls = new HashSet<>();
-		this.boxes = new TreeMap<>();
-		this.goals = new HashMap<>();
-		this.agents = new TreeMap<>();
-		this.color = new HashMap<>();
+		this.agentMoves = NO_MOVES;
+		this.boxMoves = NO_MOVES;
+
+		this.agentCells = new int[level.numAgents];
+		Arrays.fill(this.agentCells, -1);
+		for (Map.Entry<Position, Character> agent : agents.entrySet())
+			this.agentCells[agent.getValue() - '0'] = level.cellOf(agent.getKey());
+
+		// Iterating a sorted map yields the boxes in cell order
+		TreeMap<Position, Character> sortedBoxes = new TreeMap<>(boxes);
+		this.boxCells = new int[sortedBoxes.size()];
+		this.boxTypes = new byte[sortedBoxes.size()];
+		int i = 0;
+		for (Map.Entry<Position, Character> box : sortedBoxes.entrySet()) {
+			this.boxCells[i] = level.cellOf(box.getKey());
+			this.boxTypes[i] = (byte) (box.getValue() - 'A');
+			i++;
+		}
+
+		for (int agentId = 0; agentId < this.agentCells.length; agentId++)
+			if (this.agentCells[agentId] != -1)
+				this.key ^= level.agentKey(agentId, this.agentCells[agentId]);
+		for (i = 0; i < this.boxCells.length; i++)
+			this.key ^= level.boxKey(this.boxTypes[i], this.boxCells[i]);
+
+		int[] boxCounts = new int[26];
+		for (byte type : this.boxTypes)
+			boxCounts[type]++;
+		level.initDeadSquares(boxCounts);
 	}
 
 	public int g() {
 		return this.g;
 	}
 
+	/**
+	 * Values of h and f computed by an evaluator. Immutable, so states shared between searches running in parallel can
+	 * swap their evaluation without tearing.
+	 */
+	public static final class Evaluation {
+		public final Object evaluator;
+		// Lets an evaluator whose f changes (e.g. a new weight) tell old values of f from new ones while keeping h
+		public final int epoch;
+		public final int h, f;
+		// Data the evaluator keeps next to h, from which the evaluation of a child state can be derived
+		public final Object detail;
+
+		public Evaluation(Object evaluator, int epoch, int h, int f) {
+			this(evaluator, epoch, h, f, null);
+		}
+
+		public Evaluation(Object evaluator, int epoch, int h, int f, Object detail) {
+			this.evaluator = evaluator;
+			this.epoch = epoch;
+			this.h = h;
+			this.f = f;
+			this.detail = detail;
+		}
+	}
+
+	/**
+	 * Returns the cached evaluation of this state, or null if it has not been evaluated.
+	 */
+	public Evaluation getEvaluation() {
+		return this.evaluation;
+	}
+
+	public void setEvaluation(Evaluation evaluation) {
+		this.evaluation = evaluation;
+	}
+
 	public boolean isInitialState() {
 		return this.parent == null;
 	}
 
 	public boolean isGoalState() {
-		for (Position goalPos : this.goals.keySet())
-			if (!this.isGoalSatisfied(goalPos))
+		for (int goalCell : this.level.getGoalCells())
+			if (!this.isGoalSatisfied(goalCell))
 				return false;
 		return true;
 	}
 
 	public boolean isGoalSatisfied(Position goalPos) {
-		Character g = this.goals.get(goalPos);
-		Character a = this.agents.get(goalPos);
-		Character b = this.boxes.get(goalPos);
-		return g.equals(a) || g.equals(b);
+		int cell = this.level.cellOf(goalPos);
+		return cell != -1 && this.isGoalSatisfied(cell);
+	}
+
+	private boolean isGoalSatisfied(int cell) {
+		char g = this.level.goalAt(cell);
+		if (g == 0)
+			return false;
+		if (g >= '0' && g <= '9')
+			return this.getAgentCell(g - '0') == cell;
+		return g == this.boxAt(cell);
 	}
 
 	public int goalCount() {
 		int res = 0;
-		for (Position goalPos : this.goals.keySet())
-			if (!this.isGoalSatisfied(goalPos))
+		for (int goalCell : this.level.getGoalCells())
+			if (!this.isGoalSatisfied(goalCell))
 				res++;
 		return res;
 	}
 
-	public int goalCount(String color) {
+	public int goalCount(int color) {
 		int res = 0;
-		for (Map.Entry<Position, Character> goal : this.goals.entrySet()) {
-			Position goalPos = goal.getKey();
-			Character goalType = goal.getValue();
-			String goalColor = this.color.get(goalType);
-
-			if (goalColor.equals(color) && !this.isGoalSatisfied(goalPos))
+		for (int goalCell : this.level.getGoalCells())
+			if (this.level.getColor(this.level.goalAt(goalCell)) == color && !this.isGoalSatisfied(goalCell))
 				res++;
-		}
 		return res;
 	}
 
 	public boolean agentAchievedGoal(char agent) {
-		int agentId = Character.getNumericValue(agent);
-		Position agentPos = this.getPositionOfAgent(agent);
-		Command action = this.actions.get(agentId);
+		int agentId = agent - '0';
+		int agentCell = this.getAgentCell(agentId);
+		Command action = Command.get(this.actions[agentId]);
 
-		if (action instanceof Command.Move) {
-			if (this.goals.containsKey(agentPos) && this.isGoalSatisfied(agentPos))
+		if (action.kind == Command.Kind.Move) {
+			if (this.isGoalSatisfied(agentCell))
 				return true;
 
-		} else if (action instanceof Command.Push) {
+		} else if (action.kind == Command.Kind.Push) {
 			Command.Push pushCommand = (Command.Push) action;
 
-			if (this.goals.containsKey(agentPos) && this.isGoalSatisfied(agentPos))
+			if (this.isGoalSatisfied(agentCell))
 				return true;
 
-			Position boxPos = agentPos.add(pushCommand.getBoxDir());
-			if (this.goals.containsKey(boxPos) && this.isGoalSatisfied(boxPos)) {
+			int boxCell = this.level.neighbour(agentCell, pushCommand.getBoxDir());
+			if (this.isGoalSatisfied(boxCell)) {
 				return true;
 			}
-		} else if (action instanceof Command.Pull) {
-			if (this.goals.containsKey(agentPos) && this.isGoalSatisfied(agentPos))
+		} else if (action.kind == Command.Kind.Pull) {
+			if (this.isGoalSatisfied(agentCell))
 				return true;
 
-			Position boxPos = this.parent.getPositionOfAgent(agent);
-			if (this.goals.containsKey(boxPos) && this.isGoalSatisfied(boxPos)) {
+			int boxCell = this.parent.getAgentCell(agentId);
+			if (this.isGoalSatisfied(boxCell)) {
 				return true;
 			}
 		}
@@ -138,121 +199,422 @@ public class MAState {
 		return false;
 	}
 
-	public ArrayList<MAState> getExpandedStates(char agent, MAState nextState) {
-		Position agentPos = this.getPositionOfAgent(agent);
-		String agentColor = this.color.get(agent);
-
-		ArrayList<MAState> expandedStates = new ArrayList<>();
+	/**
+	 * A successor of a state that has not been built yet: the command of the expanding agent and the key of the state it
+	 * leads to. The search can look the key up in its explored and frontier sets and only build the states that survive.
+	 *
+	 * A macro successor repeats its command length times, e.g. to push a box through a tunnel as one search edge. Its
+	 * state is the last of a chain of primitive states, so extracted plans only contain primitive commands.
+	 */
+	public static class Successor {
+		public final Command command;
+		public final int length;
+		public final long key;
+
+		private final MAState parent;
+		private final byte[] otherCommands;
+		private final int agentId;
+
+		private Successor(MAState parent, byte[] otherCommands, int agentId, Command command, int length, long key) {
+			this.parent = parent;
+			this.otherCommands = otherCommands;
+			this.agentId = agentId;
+			this.command = command;
+			this.length = length;
+			this.key = key;
+		}
 
-		// Move
-		for (Command.Dir agentDir : Command.Dir.values()) {
-			Position newAgentPos = agentPos.add(agentDir);
+		public int g() {
+			return this.parent.g() + this.length;
+		}
 
-			if (this.cellIsFree(newAgentPos) && nextState.cellIsFree(newAgentPos)) {
-				ArrayList<Command> otherCommands = new ArrayList<>(nextState.actions);
-				otherCommands.set(Character.getNumericValue(agent), new Command.Move(agentDir));
+		public MAState toState() {
+			byte[] actions = this.otherCommands.clone();
+			actions[this.agentId] = this.command.id;
+			MAState state = this.parent;
+			for (int i = 0; i < this.length; i++)
+				state = new MAState(state, actions);
+			assert state.key == this.key : String.format("Successor key of %s does not match its state", this);
+			return state;
+		}
 
-				MAState newState = new MAState(this, otherCommands);
+		@Override
+		public String toString() {
+			return this.length == 1 ? this.command.toString() : this.length + "x" + this.command;
+		}
+	}
 
-				// newState.agents.remove(agentPos);
-				// newState.agents.put(newAgentPos, agent);
+	/**
+	 * Returns the successors of this state in which the given agent performs one of its applicable commands while the
+	 * other agents perform their commands of nextState. The successors are listed in generation order (moves, pushes,
+	 * pulls, NoOp), or shuffled with tieBreak if it is not null, which changes how ties in the frontier are broken.
+	 */
+	public ArrayList<Successor> getSuccessors(char agent, MAState nextState, Random tieBreak) {
+		return this.getSuccessors(agent, nextState, tieBreak, false);
+	}
 
-				expandedStates.add(newState);
-			}
+	/**
+	 * As getSuccessors, but if macros is set, a push or pull that takes a box straight into a tunnel (see
+	 * Level.isTunnel) is continued until the box leaves the tunnel, reaches a goal or is blocked, and replaces the
+	 * single step. A box pushed onto a goal goes on while the next cell is a free goal of its letter, so goal rooms at
+	 * the end of a tunnel are filled from the back. Only for single-agent searches, in which the other agents do not
+	 * act: every step of a macro is paired with the commands of nextState.
+	 */
+	public ArrayList<Successor> getSuccessors(char agent, MAState nextState, Random tieBreak, boolean macros) {
+		int agentId = agent - '0';
+		char[] occupancy = this.fillOccupancy(0);
+		char[] nextOccupancy = nextState.fillOccupancy(1);
+		try {
+			// Key of nextState with the agent's own command left out
+			long baseKey = nextState.key ^ this.commandKey(agentId, this.getAgentCell(agentId), Command.get(nextState.actions[agentId]), occupancy);
+
+			return this.getSuccessors(agentId, occupancy, nextOccupancy, null, 0, nextState.actions, baseKey, tieBreak, macros);
+		} finally {
+			this.clearOccupancy(occupancy);
+			nextState.clearOccupancy(nextOccupancy);
 		}
+	}
 
-		// Push
-		for (Command.Dir agentDir : Command.Dir.values()) {
-			Position newAgentPos = agentPos.add(agentDir);
-
-			// Make sure that there's actually a box to move
-			if (this.boxAt(newAgentPos, agentColor) && nextState.boxAt(newAgentPos, agentColor)) {
-				Position boxPos = newAgentPos;
+	/**
+	 * As getSuccessors, but the other agents perform their commands of the reserved plan at the step that follows this
+	 * state. Their cells are looked up in the reservation table, so the state after their commands is never built. The
+	 * list is empty if this state blocks the reserved commands, i.e. the agent is in the way of the other agents.
+	 */
+	public ArrayList<Successor> getSuccessors(char agent, ReservationTable reservations, Random tieBreak) {
+		int step = reservations.stepAfter(this);
+		char[] occupancy = this.fillOccupancy(0);
+		try {
+			if (!reservations.admits(step, occupancy))
+				return new ArrayList<>();
+
+			// The agent only does NoOps in the reserved plan, so the step's key change is that of the other agents
+			long baseKey = this.key ^ reservations.keyChange(step);
+			return this.getSuccessors(agent - '0', occupancy, null, reservations, step, reservations.actions(step), baseKey, tieBreak, false);
+		} finally {
+			this.clearOccupancy(occupancy);
+		}
+	}
 
-				for (Command.Dir boxDir : Command.Dir.values()) {
-					Position newBoxPos = boxPos.add(boxDir);
+	/**
+	 * Successors of this state given the objects of the other agents after their commands, either as nextOccupancy or,
+	 * if that is null, as the step of the reservation table. baseKey is the key of the state after the other agents'
+	 * commands alone.
+	 */
+	private ArrayList<Successor> getSuccessors(int agentId, char[] occupancy, char[] nextOccupancy, ReservationTable reservations, int step,
+	                                           byte[] otherCommands, long baseKey, Random tieBreak, boolean macros) {
+		int agentCell = this.getAgentCell(agentId);
+		int agentColor = this.level.getAgentColor(agentId);
 
-					// Check if there's something on the cell to which the agent is moving
-					if (this.cellIsFree(newBoxPos) && nextState.cellIsFree(newBoxPos)) {
-						ArrayList<Command> otherCommands = new ArrayList<>(nextState.actions);
-						otherCommands.set(Character.getNumericValue(agent), new Command.Push(agentDir, boxDir));
+		ArrayList<Successor> successors = new ArrayList<>();
 
-						MAState newState = new MAState(this, otherCommands);
+		// Move
+		for (Command.Dir agentDir : DIRS) {
+			int newAgentCell = this.level.neighbour(agentCell, agentDir);
 
-						// newState.agents.remove(agentPos);
-						// newState.agents.put(newAgentPos, agent);
+			if (cellIsFree(occupancy, newAgentCell) && isFreeAfter(nextOccupancy, reservations, step, newAgentCell)) {
+				Command command = Command.move(agentDir);
+				long key = baseKey ^ this.commandKey(agentId, agentCell, command, occupancy);
+				successors.add(new Successor(this, otherCommands, agentId, command, 1, key));
+			}
+		}
 
-						// Character box = newState.boxes.remove(boxPos);
-						// newState.boxes.put(newBoxPos, box);
+		// Push
+		for (Command.Dir agentDir : DIRS) {
+			int boxCell = this.level.neighbour(agentCell, agentDir);
 
-						expandedStates.add(newState);
+			// Make sure that there's actually a box to move
+			if (this.boxAt(occupancy, boxCell, agentColor) && this.keepsBox(nextOccupancy, reservations, step, boxCell, agentColor)) {
+
+				for (Command.Dir boxDir : DIRS) {
+					int newBoxCell = this.level.neighbour(boxCell, boxDir);
+
+					// Check if there's something on the cell to which the box is moving
+					if (cellIsFree(occupancy, newBoxCell) && isFreeAfter(nextOccupancy, reservations, step, newBoxCell)
+						&& !this.level.isDeadSquare(occupancy[boxCell] - 'A', newBoxCell)) {
+						Command command = Command.push(agentDir, boxDir);
+						long key = baseKey ^ this.commandKey(agentId, agentCell, command, occupancy);
+						int length = 1;
+
+						if (macros && agentDir == boxDir) {
+							int type = occupancy[boxCell] - 'A';
+							int a = boxCell, b = newBoxCell;
+							while (this.level.isTunnel(b, boxDir)) {
+								int next = this.level.neighbour(b, boxDir);
+								if (!cellIsFree(occupancy, next) || !isFreeAfter(nextOccupancy, reservations, step, next) || this.level.isDeadSquare(type, next))
+									break;
+								char goal = this.level.goalAt(b);
+								if (goal != 0 && (goal != 'A' + type || this.level.goalAt(next) != goal))
+									break;
+
+								key ^= this.level.agentKey(agentId, a) ^ this.level.agentKey(agentId, b)
+									^ this.level.boxKey(type, b) ^ this.level.boxKey(type, next);
+								a = b;
+								b = next;
+								length++;
+							}
+						}
+						successors.add(new Successor(this, otherCommands, agentId, command, length, key));
 					}
 				}
 			}
 		}
 
 		// Pull
-		for (Command.Dir boxDir : Command.Dir.values()) {
-			Position boxPos = agentPos.add(boxDir);
-
-			if (this.boxAt(boxPos, agentColor) && nextState.boxAt(boxPos, agentColor)) {
-
-				for (Command.Dir agentDir : Command.Dir.values()) {
-					Position newAgentPos = agentPos.add(agentDir);
-
-					if (this.cellIsFree(newAgentPos) && nextState.cellIsFree(newAgentPos)) {
-						ArrayList<Command> otherCommands = new ArrayList<>(nextState.actions);
-						otherCommands.set(Character.getNumericValue(agent), new Command.Pull(agentDir, boxDir));
-
-						MAState newState = new MAState(this, otherCommands);
-
-						// newState.agents.remove(agentPos);
-						// newState.agents.put(newAgentPos, agent);
-
-						// Character box = newState.boxes.remove(boxPos);
-						// newState.boxes.put(agentPos, box);
-
-						expandedStates.add(newState);
+		for (Command.Dir boxDir : DIRS) {
+			int boxCell = this.level.neighbour(agentCell, boxDir);
+
+			if (this.boxAt(occupancy, boxCell, agentColor) && this.keepsBox(nextOccupancy, reservations, step, boxCell, agentColor)) {
+
+				// The box ends up where the agent stands
+				if (this.level.isDeadSquare(occupancy[boxCell] - 'A', agentCell))
+					continue;
+
+				for (Command.Dir agentDir : DIRS) {
+					int newAgentCell = this.level.neighbour(agentCell, agentDir);
+
+					if (cellIsFree(occupancy, newAgentCell) && isFreeAfter(nextOccupancy, reservations, step, newAgentCell)) {
+						Command command = Command.pull(agentDir, boxDir);
+						long key = baseKey ^ this.commandKey(agentId, agentCell, command, occupancy);
+						int length = 1;
+
+						if (macros && agentDir.isOpposite(boxDir)) {
+							int type = occupancy[boxCell] - 'A';
+							int a = newAgentCell, b = agentCell;
+							while (this.level.isTunnel(a, agentDir)) {
+								int next = this.level.neighbour(a, agentDir);
+								if (!cellIsFree(occupancy, next) || !isFreeAfter(nextOccupancy, reservations, step, next) || this.level.isDeadSquare(type, a))
+									break;
+								if (this.level.goalAt(a) != 0 || this.level.goalAt(b) != 0)
+									break;
+
+								key ^= this.level.agentKey(agentId, a) ^ this.level.agentKey(agentId, next)
+									^ this.level.boxKey(type, b) ^ this.level.boxKey(type, a);
+								b = a;
+								a = next;
+								length++;
+							}
+						}
+						successors.add(new Successor(this, otherCommands, agentId, command, length, key));
 					}
 				}
 			}
 		}
 
 		// NoOp
-		ArrayList<Command> otherCommands = new ArrayList<>(nextState.actions);
-		otherCommands.set(Character.getNumericValue(agent), new Command.NoOp());
-
-		MAState newState = new MAState(this, otherCommands);
-		expandedStates.add(newState);
+		successors.add(new Successor(this, otherCommands, agentId, Command.NOOP, 1, baseKey));
 		// Kommer sikkert til at fucke massivt med DFS og Greedy lol
 
-		Collections.shuffle(expandedStates, RNG);
-		return expandedStates;
+		if (tieBreak != null)
+			Collections.shuffle(successors, tieBreak);
+		return successors;
 	}
 
-	private Position getPositionOfAgent(char agent) {
-		for (Map.Entry<Position, Character> entry : this.agents.entrySet()) {
-			if (entry.getValue() == agent) {
-				return entry.getKey();
-			}
+	/**
+	 * Returns the change to the key caused by the given agent performing command in this state.
+	 */
+	private long commandKey(int agentId, int agentCell, Command command, char[] occupancy) {
+		int newAgentCell, boxCell, newBoxCell;
+		if (command.kind == Command.Kind.Move) {
+			newAgentCell = this.level.neighbour(agentCell, ((Command.Move) command).getAgentDir());
+			boxCell = newBoxCell = -1;
+		} else if (command.kind == Command.Kind.Push) {
+			newAgentCell = boxCell = this.level.neighbour(agentCell, ((Command.Push) command).getAgentDir());
+			newBoxCell = this.level.neighbour(boxCell, ((Command.Push) command).getBoxDir());
+		} else if (command.kind == Command.Kind.Pull) {
+			newAgentCell = this.level.neighbour(agentCell, ((Command.Pull) command).getAgentDir());
+			boxCell = this.level.neighbour(agentCell, ((Command.Pull) command).getBoxDir());
+			newBoxCell = agentCell;
+		} else {
+			return 0;
+		}
+
+		long key = this.level.agentKey(agentId, agentCell) ^ this.level.agentKey(agentId, newAgentCell);
+		if (boxCell != -1) {
+			int type = occupancy[boxCell] - 'A';
+			key ^= this.level.boxKey(type, boxCell) ^ this.level.boxKey(type, newBoxCell);
 		}
-		throw new RuntimeException("Agent not found: " + agent);
+		return key;
 	}
 
 	public boolean cellIsFree(Position pos) {
-		return !this.walls.contains(pos) && !this.boxAt(pos) && !this.agentAt(pos);
+		int cell = this.level.cellOf(pos);
+		if (cell == -1)
+			return false;
+
+		char[] occupancy = this.fillOccupancy(0);
+		try {
+			return occupancy[cell] == 0;
+		} finally {
+			this.clearOccupancy(occupancy);
+		}
 	}
 
 	public boolean boxAt(Position pos) {
-		return this.boxes.containsKey(pos);
+		int cell = this.level.cellOf(pos);
+		return cell != -1 && this.boxAt(cell) != 0;
 	}
 
-	public boolean boxAt(Position pos, String color) {
-		return this.boxAt(pos) && this.color.get(this.boxes.get(pos)).equals(color);
+	public boolean boxAt(Position pos, int color) {
+		return this.boxAt(this.level.cellOf(pos), color);
 	}
 
 	public boolean agentAt(Position pos) {
-		return this.agents.containsKey(pos);
+		int cell = this.level.cellOf(pos);
+		if (cell == -1)
+			return false;
+
+		char[] occupancy = this.fillOccupancy(0);
+		try {
+			return occupancy[cell] >= '0' && occupancy[cell] <= '9';
+		} finally {
+			this.clearOccupancy(occupancy);
+		}
+	}
+
+	private boolean boxAt(int cell, int color) {
+		if (cell == -1)
+			return false;
+		char box = this.boxAt(cell);
+		return box != 0 && this.level.getColor(box) == color;
+	}
+
+	/**
+	 * Writes the agent digit or box letter occupying each cell of this state into a scratch array of the calling thread
+	 * (slot 0 for the state being expanded, 1 for the state after the other agents' commands); other cells stay 0. Only
+	 * the cells of the agents and boxes are written, so this is linear in the number of objects rather than cells, and
+	 * every occupancy query after it is a single array read. The array must be handed back to clearOccupancy of the
+	 * same state before the slot is used again.
+	 */
+	private char[] fillOccupancy(int slot) {
+		this.materialise();
+		char[][] scratch = OCCUPANCY.get();
+		if (scratch[slot].length < this.level.getCellCount())
+			scratch[slot] = new char[this.level.getCellCount()];
+
+		char[] occupancy = scratch[slot];
+		for (int agentId = 0; agentId < this.agentCells.length; agentId++)
+			if (this.agentCells[agentId] != -1)
+				occupancy[this.agentCells[agentId]] = (char) ('0' + agentId);
+		for (int i = 0; i < this.boxCells.length; i++)
+			occupancy[this.boxCells[i]] = (char) ('A' + this.boxTypes[i]);
+		return occupancy;
+	}
+
+	/**
+	 * Resets the cells written by fillOccupancy to 0.
+	 */
+	private void clearOccupancy(char[] occupancy) {
+		for (int agentCell : this.agentCells)
+			if (agentCell != -1)
+				occupancy[agentCell] = 0;
+		for (int boxCell : this.boxCells)
+			occupancy[boxCell] = 0;
+	}
+
+	private static boolean cellIsFree(char[] occupancy, int cell) {
+		return cell != -1 && occupancy[cell] == 0;
+	}
+
+	/**
+	 * Returns true if the cell, free at the start of the joint action, is not entered by the other agents' objects.
+	 */
+	private static boolean isFreeAfter(char[] nextOccupancy, ReservationTable reservations, int step, int cell) {
+		return nextOccupancy != null ? cellIsFree(nextOccupancy, cell) : cell != -1 && !reservations.isEntered(step, cell);
+	}
+
+	/**
+	 * Returns true if the box in the cell at the start of the joint action is not moved by the other agents.
+	 */
+	private boolean keepsBox(char[] nextOccupancy, ReservationTable reservations, int step, int cell, int color) {
+		return nextOccupancy != null ? this.boxAt(nextOccupancy, cell, color) : !reservations.isBoxSource(step, cell);
+	}
+
+	private boolean boxAt(char[] occupancy, int cell, int color) {
+		return cell != -1 && occupancy[cell] >= 'A' && this.level.getColor(occupancy[cell]) == color;
+	}
+
+	/**
+	 * Returns the letter of the box in the given cell, or 0 if there is none.
+	 */
+	private char boxAt(int cell) {
+		this.materialise();
+		int i = Arrays.binarySearch(this.boxCells, cell);
+		return i < 0 ? 0 : (char) ('A' + this.boxTypes[i]);
+	}
+
+	/**
+	 * Returns the cell of the given agent, or -1 if it is not part of this level. Does not need a materialised state.
+	 */
+	public int getAgentCell(int agentId) {
+		for (MAState state = this; ; state = state.parent) {
+			if (state.agentCells != null)
+				return state.agentCells[agentId];
+			for (int i = 0; i < state.agentMoves.length; i += 2)
+				if (state.agentMoves[i] == agentId)
+					return state.agentMoves[i + 1];
+		}
+	}
+
+	/**
+	 * Returns pairs of (agent id, new cell) of the agents moved by the joint action that led to this state. Shared, so
+	 * never modified.
+	 */
+	public int[] getAgentMoves() {
+		return this.agentMoves;
+	}
+
+	/**
+	 * Returns pairs of (old cell, new cell) of the boxes moved by the joint action that led to this state. Shared, so
+	 * never modified.
+	 */
+	public int[] getBoxMoves() {
+		return this.boxMoves;
+	}
+
+	/**
+	 * Returns the letter of the box in the given cell, or 0 if there is none.
+	 */
+	public char getBoxTypeAt(int cell) {
+		return this.boxAt(cell);
+	}
+
+	public int getBoxCount() {
+		this.materialise();
+		return this.boxCells.length;
+	}
+
+	public int getBoxCell(int i) {
+		this.materialise();
+		return this.boxCells[i];
+	}
+
+	public char getBoxType(int i) {
+		this.materialise();
+		return (char) ('A' + this.boxTypes[i]);
+	}
+
+	/**
+	 * Map view of the agents keyed by position, built on demand. Meant for printing and debugging; the search works on
+	 * the packed arrays directly.
+	 */
+	public SortedMap<Position, Character> agents() {
+		this.materialise();
+		TreeMap<Position, Character> agents = new TreeMap<>();
+		for (int agentId = 0; agentId < this.agentCells.length; agentId++)
+			if (this.agentCells[agentId] != -1)
+				agents.put(this.level.positionOf(this.agentCells[agentId]), (char) ('0' + agentId));
+		return Collections.unmodifiableSortedMap(agents);
+	}
+
+	/**
+	 * Map view of the boxes keyed by position, built on demand.
+	 */
+	public SortedMap<Position, Character> boxes() {
+		this.materialise();
+		TreeMap<Position, Character> boxes = new TreeMap<>();
+		for (int i = 0; i < this.boxCells.length; i++)
+			boxes.put(this.level.positionOf(this.boxCells[i]), this.getBoxType(i));
+		return Collections.unmodifiableSortedMap(boxes);
 	}
 
 	public ArrayList<MAState> extractPlan() {
@@ -274,39 +636,45 @@ public class MAState {
 		return plan;
 	}
 
-	public boolean isApplicable(List<Command> actions) {
-		for (Map.Entry<Position, Character> agent : this.agents.entrySet()) {
-			Position agentPos = agent.getKey();
-			char agentType = agent.getValue();
-			int agentId = Character.getNumericValue(agentType);
+	public boolean isApplicable(byte[] actions) {
+		char[] occupancy = this.fillOccupancy(0);
+		try {
+			return this.isApplicable(actions, occupancy);
+		} finally {
+			this.clearOccupancy(occupancy);
+		}
+	}
+
+	private boolean isApplicable(byte[] actions, char[] occupancy) {
+		for (int agentId = 0; agentId < this.agentCells.length; agentId++) {
+			int agentCell = this.agentCells[agentId];
+			if (agentCell == -1)
+				continue;
 
-			Command command = actions.get(agentId);
-			if (command instanceof Command.Move) {
-				Position newAgentPos = agentPos.add(((Command.Move) command).getAgentDir());
+			int agentColor = this.level.getAgentColor(agentId);
 
-				if (!this.cellIsFree(newAgentPos))
+			Command command = Command.get(actions[agentId]);
+			if (command.kind == Command.Kind.Move) {
+				int newAgentCell = this.level.neighbour(agentCell, ((Command.Move) command).getAgentDir());
+
+				if (!cellIsFree(occupancy, newAgentCell))
 					return false;
 
-			} else if (command instanceof Command.Push) {
-				Position newAgentPos = agentPos.add(((Command.Push) command).getAgentDir());
-				Position boxPos = newAgentPos;
-				Position newBoxPos = boxPos.add(((Command.Push) command).getBoxDir());
-				String agentColor = this.color.get(agentType);
+			} else if (command.kind == Command.Kind.Push) {
+				int boxCell = this.level.neighbour(agentCell, ((Command.Push) command).getAgentDir());
 
-				if (!this.boxAt(newAgentPos, agentColor))
+				if (!this.boxAt(occupancy, boxCell, agentColor))
 					return false;
-				if (!this.cellIsFree(newBoxPos))
+				if (!cellIsFree(occupancy, this.level.neighbour(boxCell, ((Command.Push) command).getBoxDir())))
 					return false;
 
-			} else if (command instanceof Command.Pull) {
-				Position boxPos = agentPos.add(((Command.Pull) command).getBoxDir());
-				Position newAgentPos = agentPos.add(((Command.Pull) command).getAgentDir());
-				Position newBoxPos = agentPos;
-				String agentColor = this.color.get(agentType);
+			} else if (command.kind == Command.Kind.Pull) {
+				int boxCell = this.level.neighbour(agentCell, ((Command.Pull) command).getBoxDir());
+				int newAgentCell = this.level.neighbour(agentCell, ((Command.Pull) command).getAgentDir());
 
-				if (!this.boxAt(boxPos, agentColor))
+				if (!this.boxAt(occupancy, boxCell, agentColor))
 					return false;
-				if (!this.cellIsFree(newAgentPos))
+				if (!cellIsFree(occupancy, newAgentCell))
 					return false;
 
 			}
@@ -315,101 +683,182 @@ public class MAState {
 		return true;
 	}
 
-	private void applyActions(List<Command> actions) {
-		TreeMap<Position, Character> agents = new TreeMap<>(this.agents);
-
-		for (Map.Entry<Position, Character> agent : agents.entrySet()) {
-			Position agentPos = agent.getKey();
-			char agentType = agent.getValue();
-			int agentId = Character.getNumericValue(agentType);
-
-			Command command = actions.get(agentId);
-			if (command instanceof Command.Move) {
-				Position newAgentPos = agentPos.add(((Command.Move) command).getAgentDir());
-
-				assert this.cellIsFree(newAgentPos) : String.format("Cannot apply %s to\n%s", actions, this.parent);
-
-				this.agents.remove(agentPos);
-				this.agents.put(newAgentPos, agentType);
+	/**
+	 * Records the agents and boxes moved by the joint action and updates the key. The action is applied to the parent, as
+	 * all cells an action depends on must be free at the start of the joint action.
+	 */
+	private void applyActions(byte[] actions) {
+		MAState parent = this.parent;
+		assert parent.isApplicable(actions) : String.format("Cannot apply %s to\n%s", Command.toString(actions), parent);
+
+		int[] agentMoves = new int[2 * this.level.numAgents];
+		int[] boxMoves = new int[2 * this.level.numAgents];
+		int numAgentMoves = 0, numBoxMoves = 0;
+
+		for (int agentId = 0; agentId < this.level.numAgents; agentId++) {
+			int agentCell = parent.getAgentCell(agentId);
+			if (agentCell == -1)
+				continue;
+
+			int newAgentCell, boxCell, newBoxCell;
+
+			Command command = Command.get(actions[agentId]);
+			if (command.kind == Command.Kind.Move) {
+				newAgentCell = this.level.neighbour(agentCell, ((Command.Move) command).getAgentDir());
+				boxCell = newBoxCell = -1;
+
+			} else if (command.kind == Command.Kind.Push) {
+				newAgentCell = boxCell = this.level.neighbour(agentCell, ((Command.Push) command).getAgentDir());
+				newBoxCell = this.level.neighbour(boxCell, ((Command.Push) command).getBoxDir());
+
+			} else if (command.kind == Command.Kind.Pull) {
+				boxCell = this.level.neighbour(agentCell, ((Command.Pull) command).getBoxDir());
+				newAgentCell = this.level.neighbour(agentCell, ((Command.Pull) command).getAgentDir());
+				newBoxCell = agentCell;
+
+			} else {
+				continue;
+			}
 
-			} else if (command instanceof Command.Push) {
-				Position newAgentPos = agentPos.add(((Command.Push) command).getAgentDir());
-				Position boxPos = newAgentPos;
-				Position newBoxPos = boxPos.add(((Command.Push) command).getBoxDir());
-				String agentColor = this.color.get(agentType);
+			this.key ^= this.level.agentKey(agentId, agentCell) ^ this.level.agentKey(agentId, newAgentCell);
+			agentMoves[numAgentMoves++] = agentId;
+			agentMoves[numAgentMoves++] = newAgentCell;
 
-				assert this.boxAt(newAgentPos, agentColor) : String.format("Cannot apply %s to\n%s", actions, this.parent);
-				assert this.cellIsFree(newBoxPos) : String.format("Cannot apply %s to\n%s", actions, this.parent);
+			if (boxCell != -1) {
+				int type = parent.boxAt(boxCell) - 'A';
+				this.key ^= this.level.boxKey(type, boxCell) ^ this.level.boxKey(type, newBoxCell);
+				boxMoves[numBoxMoves++] = boxCell;
+				boxMoves[numBoxMoves++] = newBoxCell;
+			}
+		}
 
-				this.agents.remove(agentPos);
-				this.agents.put(newAgentPos, agentType);
+		this.agentMoves = numAgentMoves == 0 ? NO_MOVES : Arrays.copyOf(agentMoves, numAgentMoves);
+		this.boxMoves = numBoxMoves == 0 ? NO_MOVES : Arrays.copyOf(boxMoves, numBoxMoves);
+	}
 
-				Character box = this.boxes.remove(boxPos);
-				this.boxes.put(newBoxPos, box);
+	/**
+	 * Builds the packed arrays of this state if they have not been built yet. Unmaterialised ancestors are handled
+	 * top-down in a loop, so long chains of states that were never expanded do not recurse.
+	 */
+	private void materialise() {
+		if (this.agentCells != null)
+			return;
+		if (this.parent.agentCells != null) {
+			this.applyMoves();
+			return;
+		}
 
-			} else if (command instanceof Command.Pull) {
-				Position boxPos = agentPos.add(((Command.Pull) command).getBoxDir());
-				Position newAgentPos = agentPos.add(((Command.Pull) command).getAgentDir());
-				Position newBoxPos = agentPos;
-				String agentColor = this.color.get(agentType);
+		ArrayDeque<MAState> chain = new ArrayDeque<>();
+		for (MAState state = this; state.agentCells == null; state = state.parent)
+			chain.push(state);
+		for (MAState state : chain)
+			state.applyMoves();
+	}
 
-				assert this.boxAt(boxPos, agentColor) : String.format("Cannot apply %s to\n%s", actions, this.parent);
-				assert this.cellIsFree(newAgentPos) : String.format("Cannot apply %s to\n%s", actions, this.parent);
+	/**
+	 * Builds the packed arrays of this state from those of its (materialised) parent.
+	 */
+	private void applyMoves() {
+		int[] agentCells = this.parent.agentCells;
+		if (this.agentMoves.length > 0) {
+			agentCells = agentCells.clone();
+			for (int i = 0; i < this.agentMoves.length; i += 2)
+				agentCells[this.agentMoves[i]] = this.agentMoves[i + 1];
+		}
 
-				this.agents.remove(agentPos);
-				this.agents.put(newAgentPos, agentType);
+		int[] boxCells = this.parent.boxCells;
+		byte[] boxTypes = this.parent.boxTypes;
+		if (this.boxMoves.length > 0) {
+			boxCells = boxCells.clone();
+			boxTypes = boxTypes.clone();
+			for (int i = 0; i < this.boxMoves.length; i += 2)
+				moveBox(boxCells, boxTypes, this.boxMoves[i], this.boxMoves[i + 1]);
+		}
 
-				Character box = this.boxes.remove(boxPos);
-				this.boxes.put(newBoxPos, box);
+		this.boxCells = boxCells;
+		this.boxTypes = boxTypes;
+		this.agentCells = agentCells;
+	}
 
+	/**
+	 * Moves the box in cell from to cell to, shifting the entries in between so that boxCells stays sorted.
+	 */
+	private static void moveBox(int[] boxCells, byte[] boxTypes, int from, int to) {
+		int i = Arrays.binarySearch(boxCells, from);
+		byte type = boxTypes[i];
+
+		if (to > from) {
+			while (i + 1 < boxCells.length && boxCells[i + 1] < to) {
+				boxCells[i] = boxCells[i + 1];
+				boxTypes[i] = boxTypes[i + 1];
+				i++;
+			}
+		} else {
+			while (i > 0 && boxCells[i - 1] > to) {
+				boxCells[i] = boxCells[i - 1];
+				boxTypes[i] = boxTypes[i - 1];
+				i--;
 			}
 		}
+
+		boxCells[i] = to;
+		boxTypes[i] = type;
 	}
 
 	public boolean isSAState() {
-		return this.agents.size() == 1;
+		this.materialise();
+		int agentCount = 0;
+		for (int agentCell : this.agentCells)
+			if (agentCell != -1)
+				agentCount++;
+		return agentCount == 1;
 	}
 
-	public void wallifyBoxes() {
-		Set<String> agentColors = this.color.entrySet().stream().filter(entry -> Character.isDigit(entry.getKey())).map(Map.Entry::getValue).collect(Collectors.toSet());
-		TreeMap<Position, Character> boxes = new TreeMap<>(this.boxes);
-
-		for (Map.Entry<Position, Character> box : boxes.entrySet()) {
-			Position boxPos = box.getKey();
-			Character boxType = box.getValue();
-
-			if (!agentColors.contains(this.color.get(boxType))) {
-				this.boxes.remove(boxPos);
-				this.walls.add(boxPos);
+	/**
+	 * Returns a copy of this state in which every box that no agent can move has been turned into a wall.
+	 */
+	public MAState wallifyBoxes() {
+		this.materialise();
+		Set<Integer> agentColors = new HashSet<>();
+		for (int agentId = 0; agentId < this.agentCells.length; agentId++)
+			agentColors.add(this.level.getAgentColor(agentId));
+
+		int width = this.level.width;
+		boolean[] walls = new boolean[width * this.level.height];
+		char[] goals = new char[width * this.level.height];
+		for (int row = 0; row < this.level.height; row++) {
+			for (int col = 0; col < width; col++) {
+				int cell = this.level.cellAt(row, col);
+				walls[row * width + col] = cell == -1;
+				goals[row * width + col] = cell == -1 ? 0 : this.level.goalAt(cell);
 			}
 		}
-	}
-
-	@Override
-	public int hashCode() {
-		final int prime = 31;
-		int hash = 0;
 
-		// Requires sorted collection to guarantee iteration order
-		for (Map.Entry<Position, Character> box : this.boxes.entrySet()) {
-			Position pos = box.getKey();
-			Character type = box.getValue();
+		TreeMap<Position, Character> boxes = new TreeMap<>();
+		for (int i = 0; i < this.boxCells.length; i++) {
+			Position boxPos = this.level.positionOf(this.boxCells[i]);
+			char boxType = this.getBoxType(i);
 
-			hash = hash * prime + pos.getRow();
-			hash = hash * prime + pos.getCol();
-			hash = hash * prime + type;
+			if (agentColors.contains(this.level.getColor(boxType)))
+				boxes.put(boxPos, boxType);
+			else
+				walls[boxPos.getRow() * width + boxPos.getCol()] = true;
 		}
 
-		for (Map.Entry<Position, Character> agent : this.agents.entrySet()) {
-			Position pos = agent.getKey();
-			Character type = agent.getValue();
+		return new MAState(this.level.withLayout(walls, goals), this.agents(), boxes);
+	}
 
-			hash = hash * prime + pos.getRow();
-			hash = hash * prime + pos.getCol();
-			hash = hash * prime + type;
-		}
+	/**
+	 * 64-bit Zobrist key of the agent and box layout. Equal states have equal keys, and for different states a collision
+	 * is unlikely enough that the key can stand in for the state as a closed-set fingerprint.
+	 */
+	public long key() {
+		return this.key;
+	}
 
-		return hash;
+	@Override
+	public int hashCode() {
+		return (int) (this.key ^ (this.key >>> 32));
 	}
 
 	@Override
@@ -422,35 +871,47 @@ public class MAState {
 			return false;
 
 		MAState other = (MAState) obj;
-		if (!this.agents.equals(other.agents))
+		if (this.key != other.key)
 			return false;
-		if (!this.boxes.equals(other.boxes))
+
+		this.materialise();
+		other.materialise();
+		if (!Arrays.equals(this.agentCells, other.agentCells))
 			return false;
-		if (!this.goals.equals(other.goals))
+		if (!Arrays.equals(this.boxCells, other.boxCells))
 			return false;
-		return this.walls.equals(other.walls);
+		return Arrays.equals(this.boxTypes, other.boxTypes);
 	}
 
 	@Override
 	public String toString() {
+		char[] occupancy = this.fillOccupancy(0);
+		try {
+			return this.toString(occupancy);
+		} finally {
+			this.clearOccupancy(occupancy);
+		}
+	}
+
+	private String toString(char[] occupancy) {
 		StringBuilder s = new StringBuilder();
-		for (int row = 0; row < this.height; row++) {
-			for (int col = 0; col < this.width; col++) {
-				Position pos = new Position(row, col);
-
-				if (this.agents.containsKey(pos)) {
-					s.append(this.agents.get(pos));
-				} else if (this.boxAt(pos)) {
-					s.append(Character.toLowerCase(this.boxes.get(pos)));
-				} else if (this.goals.containsKey(pos)) {
-					s.append(this.goals.get(pos));
-				} else if (this.walls.contains(pos)) {
+		for (int row = 0; row < this.level.height; row++) {
+			for (int col = 0; col < this.level.width; col++) {
+				int cell = this.level.cellAt(row, col);
+
+				if (cell == -1) {
 					s.append("+");
+				} else if (occupancy[cell] >= '0' && occupancy[cell] <= '9') {
+					s.append(occupancy[cell]);
+				} else if (occupancy[cell] != 0) {
+					s.append(Character.toLowerCase(occupancy[cell]));
+				} else if (this.level.goalAt(cell) != 0) {
+					s.append(this.level.goalAt(cell));
 				} else {
 					s.append(" ");
 				}
 			}
-			if (row < this.height - 1) {
+			if (row < this.level.height - 1) {
 				s.append("\n");
 			}
 		}
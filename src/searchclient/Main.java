@@ -1,13 +1,25 @@
 package searchclient;
 
 import searchclient.agent.Agent;
+import searchclient.agent.AnytimeWAStar;
+import searchclient.agent.CBS;
+import searchclient.agent.ClosedSet;
+import searchclient.agent.HDAStar;
 import searchclient.agent.Heuristic;
 import searchclient.agent.Strategy;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.util.*;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -63,7 +75,10 @@ public class Main {
 		}
 
 		System.err.printf("Level is %dx%d\n", width, height);
-		MAState initialState = new MAState(width, height, domain);
+		boolean[] walls = new boolean[width * height];
+		char[] goals = new char[width * height];
+		Map<Position, Character> agents = new TreeMap<>();
+		Map<Position, Character> boxes = new TreeMap<>();
 
 		for (int i = 0; i < lines.size(); i++) {
 			// Make sure that input is rectangular
@@ -75,11 +90,11 @@ public class Main {
 				char chr = lines.get(row).charAt(col);
 
 				if (chr == '+') { // Wall.
-					initialState.walls.add(new Position(row, col));
+					walls[row * width + col] = true;
 				} else if ('0' <= chr && chr <= '9') { // Agent.
-					initialState.agents.put(new Position(row, col), chr);
+					agents.put(new Position(row, col), chr);
 				} else if ('A' <= chr && chr <= 'Z') { // Box.
-					initialState.boxes.put(new Position(row, col), chr);
+					boxes.put(new Position(row, col), chr);
 				} else if (chr == ' ') {
 					// Free space.
 				} else {
@@ -118,7 +133,7 @@ public class Main {
 				if (chr == '+') { // Wall.
 
 				} else if (('0' <= chr && chr <= '9') || ('A' <= chr && chr <= 'Z')) { // Goal / agent
-					initialState.goals.put(new Position(row, col), chr);
+					goals[row * width + col] = chr;
 				} else if (chr == ' ') {
 					// Free space.
 				} else {
@@ -129,68 +144,73 @@ public class Main {
 			}
 		}
 
-		initialState.color.putAll(colors);
-
 		assert "#end".equals(line);
 
 		// TODO: Convert boxes with no agents to walls
 
-		initialState.numAgents = initialState.agents.size();
-		return initialState;
+		Level level = new Level(domain, width, height, agents.size(), walls, goals, colors);
+		return new MAState(level, agents, boxes);
 	}
 
 	public static List<MAState> splitLevel(MAState initialState){ // :)
 
-		initialState.wallifyBoxes();
+		initialState = initialState.wallifyBoxes();
+		Level level = initialState.level;
+
+		char[] initialAgents = new char[level.getCellCount()];
+		for (int agentId = 0; agentId < level.numAgents; agentId++)
+			if (initialState.getAgentCell(agentId) != -1)
+				initialAgents[initialState.getAgentCell(agentId)] = (char) ('0' + agentId);
+		char[] initialBoxes = new char[level.getCellCount()];
+		for (int i = 0; i < initialState.getBoxCount(); i++)
+			initialBoxes[initialState.getBoxCell(i)] = initialState.getBoxType(i);
 
 		// Initialise distance map aka np.zeros :)
-		int[][] sectionIndex = new int[initialState.height][initialState.width];
+		int[] sectionIndex = new int[level.getCellCount()];
+		int[] frontier = new int[level.getCellCount()];
 
 		int goalIndex = 1;
-		int height = initialState.height, width = initialState.width;
-		String domain = initialState.domain;
 
 		List<MAState> subLevels = new ArrayList<>();
-		for (Map.Entry<Position, Character> goal : initialState.goals.entrySet()) {
-			Position goalPosition = goal.getKey();
-
-			if (sectionIndex[goalPosition.getRow()][goalPosition.getCol()] == 0) // if goal is not already seen fill from this goal
+		for (int goalCell : level.getGoalCells()) {
+			if (sectionIndex[goalCell] == 0) // if goal is not already seen fill from this goal
 			{
 
-				MAState newState = new MAState(width, height, domain);
-				newState.numAgents = initialState.numAgents;
-				newState.color.putAll(initialState.color);
-				ArrayDeque<Position> frontier = new ArrayDeque<>(Collections.singletonList(goalPosition));
-
-				while (!frontier.isEmpty()) {
-					Position p = frontier.pop();
-					int row = p.getRow(), col = p.getCol();
-
-					if (initialState.walls.contains(p)) {
-						newState.walls.add(p);
-						continue; // pls continue while loop
+				// Everything outside of the region becomes a wall of the sub-level
+				boolean[] walls = new boolean[level.width * level.height];
+				Arrays.fill(walls, true);
+				char[] goals = new char[level.width * level.height];
+				Map<Position, Character> agents = new TreeMap<>();
+				Map<Position, Character> boxes = new TreeMap<>();
+
+				int head = 0, tail = 0;
+				frontier[tail++] = goalCell;
+				sectionIndex[goalCell] = goalIndex; // :)
+
+				while (head < tail) {
+					int cell = frontier[head++];
+					Position p = level.positionOf(cell);
+					int index = p.getRow() * level.width + p.getCol();
+
+					walls[index] = false;
+					goals[index] = level.goalAt(cell);
+					if (initialBoxes[cell] != 0) {
+						boxes.put(p, initialBoxes[cell]);
+					}
+					if (initialAgents[cell] != 0) {
+						agents.put(p, initialAgents[cell]);
 					}
 
-					if (sectionIndex[row][col] == 0) {
-						sectionIndex[row][col] = goalIndex; // :)
-
-						if (initialState.goals.containsKey(p)) {
-							newState.goals.put(p, initialState.goals.get(p));
-						}
-						if (initialState.boxes.containsKey(p)) {
-							newState.boxes.put(p, initialState.boxes.get(p));
-						}
-						if (initialState.agents.containsKey(p)) {
-							newState.agents.put(p, initialState.agents.get(p));
-						}
-
-						for (Command.Dir dir : Command.Dir.values()) {
-							frontier.add(p.add(dir));
+					for (Command.Dir dir : Command.Dir.values()) {
+						int next = level.neighbour(cell, dir);
+						if (next != -1 && sectionIndex[next] == 0) {
+							sectionIndex[next] = goalIndex;
+							frontier[tail++] = next;
 						}
 					}
 				}
 				goalIndex++;
-				subLevels.add(newState);
+				subLevels.add(new MAState(level.withLayout(walls, goals), agents, boxes));
 
 			}
 		}
@@ -208,8 +228,8 @@ public class Main {
 		return result;
 	}
 
-	public static List<MAState> maSolve(MAState initialState) { // :)
-		int numAgents = initialState.numAgents;
+	public static List<MAState> maSolve(MAState initialState, Options options) throws InterruptedException, ExecutionException { // :)
+		int numAgents = initialState.level.numAgents;
 
 		List<MAState> maSolution = new ArrayList<>(Collections.singletonList(initialState));
 
@@ -218,87 +238,124 @@ public class Main {
 		// All agents have initially performed 0 actions
 		Arrays.fill(actionsPerformed, 0);
 
-		while (!maSolution.get(maSolution.size() - 1).isGoalState()) {
-
-			List<MAState> fastestSASolution = null;
-			int fastestAgent = -1;
-
-
-			System.err.printf("Moves: %s\n", Arrays.toString(actionsPerformed));
-
-			// Find single agent-goal pair such that agent fills goal fastest
-			for (Map.Entry<Position, Character> agent : initialState.agents.entrySet()) {
-				Position agentPos = agent.getKey();
-				char agentType = agent.getValue();
-				int agentId = Character.getNumericValue(agentType);
-				String agentColor = initialState.color.get(agentType);
-
-				if (maSolution.get(maSolution.size() - 1).goalCount(agentColor) == 0)
-					continue;
+		// Agents are searched in the order of their initial positions, which decides ties between equally short plans
+		int[] agentOrder = initialState.agents().values().stream().mapToInt(agent -> agent - '0').toArray();
 
+		// The searches of one iteration are independent, so they run in parallel
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(numAgents, Runtime.getRuntime().availableProcessors())));
+		try {
+			while (!maSolution.get(maSolution.size() - 1).isGoalState()) {
+				List<MAState> fastestSASolution = maSolveStep(executor, initialState, agentOrder, maSolution, actionsPerformed, options);
+				maSolution = fastestSASolution;
+				System.err.println(maSolution.get(maSolution.size() - 1));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return maSolution;
+	}
 
-				int moves = actionsPerformed[agentId];
-				MAState state = maSolution.get(moves);
+	/**
+	 * Plans one more goal: searches for every agent of agentOrder in parallel and extends the shortest plan with the rest
+	 * of maSolution, ties going to the agent that comes first in agentOrder. The searches share a bound: once one of them
+	 * has a plan, the others drop the states that cannot beat it.
+	 *
+	 * The heuristic is not admissible, so a bounded search can return a plan the unbounded search would not have found
+	 * first, and which agent's plan is kept can then depend on the order in which the searches finish.
+	 */
+	private static List<MAState> maSolveStep(ExecutorService executor, MAState initialState, int[] agentOrder, List<MAState> maSolution, int[] actionsPerformed, Options options) throws InterruptedException, ExecutionException {
+		List<MAState> fastestSASolution = null;
+		int fastestAgent = -1;
+
+
+		System.err.printf("Moves: %s\n", Arrays.toString(actionsPerformed));
+
+		// Find single agent-goal pair such that agent fills goal fastest
+		// Searches share a bound, so each drops the states that can no longer beat the best plan found so far
+		Agent.PlanBound bound = new Agent.PlanBound();
+		// Every agent only does NoOps in maSolution after its own actions, so all searches share one table of the plan
+		ReservationTable reservations = new ReservationTable(maSolution);
+		List<Integer> agentIds = new ArrayList<>();
+		List<Future<ArrayList<MAState>>> searches = new ArrayList<>();
+		List<ByteArrayOutputStream> logs = new ArrayList<>();
+		for (int agentId : agentOrder) {
+			char agentType = (char) ('0' + agentId);
+			int agentColor = initialState.level.getAgentColor(agentId);
+
+			if (maSolution.get(maSolution.size() - 1).goalCount(agentColor) == 0)
+				continue;
+
+
+			int moves = actionsPerformed[agentId];
+			MAState state = maSolution.get(moves);
+
+			Heuristic heuristic = new Heuristic.AStar(state, agentColor);
+			Strategy strategy = configure(options.bucket ? new Strategy.StrategyBucket(heuristic) : new Strategy.StrategyBestFirst(heuristic), options);
+			ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+			int rank = agentIds.size();
+			agentIds.add(agentId);
+			logs.add(log);
+			searches.add(executor.submit(() ->
+				Agent.search(agentType, state, reservations, strategy, new PrintStream(log, true), bound, rank)));
+		}
 
-				ArrayList<MAState> saSolution = Agent.search(agentType, maSolution.subList(moves, maSolution.size()),
-					new Strategy.StrategyBestFirst(new Heuristic.AStar(state, agentColor)));
+		for (int i = 0; i < searches.size(); i++) {
+			ArrayList<MAState> saSolution = searches.get(i).get();
+			System.err.print(logs.get(i));
 
-				if (fastestSASolution == null || (saSolution != null && saSolution.size() < fastestSASolution.size())) {
-					fastestSASolution = saSolution;
-					fastestAgent = agentId;
-				}
+			if (fastestSASolution == null || (saSolution != null && saSolution.size() < fastestSASolution.size())) {
+				fastestSASolution = saSolution;
+				fastestAgent = agentIds.get(i);
 			}
+		}
 
 
-			assert fastestSASolution != null;
-
-			System.err.printf("Fastest agent was (%d) with %d moves\n", fastestAgent, fastestSASolution.size() - 1);
-			// System.err.println(fastestSASolution.get(fastestSASolution.size() - 1));
-			System.err.println(fastestSASolution.stream().map(x -> (x.actions != null ? x.actions.toString() : "(None)")).collect(Collectors.joining(" ")));
-			System.err.println();
-
-			// Note how much the agent has moved
-			actionsPerformed[fastestAgent] = fastestSASolution.size() - 1;
+		assert fastestSASolution != null;
 
-			// Expand SA solution
-			while (fastestSASolution.size() < maSolution.size()) {
-				MAState lastState = fastestSASolution.get(fastestSASolution.size() - 1);
-				List<Command> actions = maSolution.get(lastState.g() + 1).actions;
-				fastestSASolution.add(new MAState(lastState, actions));
-			}
+		System.err.printf("Fastest agent was (%d) with %d moves\n", fastestAgent, fastestSASolution.size() - 1);
+		// System.err.println(fastestSASolution.get(fastestSASolution.size() - 1));
+		System.err.println(fastestSASolution.stream().map(x -> (x.actions != null ? Command.toString(x.actions) : "(None)")).collect(Collectors.joining(" ")));
+		System.err.println();
 
-			maSolution = fastestSASolution;
-			System.err.println(maSolution.get(maSolution.size() - 1));
+		// Note how much the agent has moved
+		actionsPerformed[fastestAgent] = fastestSASolution.size() - 1;
 
+		// Expand SA solution
+		while (fastestSASolution.size() < maSolution.size()) {
+			MAState lastState = fastestSASolution.get(fastestSASolution.size() - 1);
+			byte[] actions = maSolution.get(lastState.g() + 1).actions;
+			fastestSASolution.add(new MAState(lastState, actions));
 		}
-		return maSolution;
+
+		return fastestSASolution;
 	}
 
-	public static List<List<Command>> mergeSolutions(List<List<Command>> solution1, List<List<Command>> solution2) {
+	public static List<byte[]> mergeSolutions(List<byte[]> solution1, List<byte[]> solution2) {
 
 		if (solution2.size() > solution1.size()) {
-			List<List<Command>> tmp = solution1;
+			List<byte[]> tmp = solution1;
 			solution1 = solution2;
 			solution2 = tmp;
 		}
 
-		List<Command> initial = solution1.get(0);
-		List<List<Command>> mergedSolutionStates = new ArrayList<>(Collections.singletonList(initial)); // yolo
+		byte[] initial = solution1.get(0);
+		List<byte[]> mergedSolutionStates = new ArrayList<>(Collections.singletonList(initial)); // yolo
 
-		Iterator<List<Command>> it1 = solution1.iterator();
-		Iterator<List<Command>> it2 = solution2.iterator();
+		Iterator<byte[]> it1 = solution1.iterator();
+		Iterator<byte[]> it2 = solution2.iterator();
 
 		it1.next();
 		it2.next(); // lul iterate first to remove initial state
 
 		while (it1.hasNext() && it2.hasNext()) {
-			List<Command> s1 = it1.next();
-			List<Command> s2 = it2.next();
-			List<Command> newActions = new ArrayList<>(s1);
+			byte[] s1 = it1.next();
+			byte[] s2 = it2.next();
+			byte[] newActions = s1.clone();
 
-			for (int i = 0; i < s2.size(); i++) {
-				if (!(s2.get(i) instanceof Command.NoOp))
-					newActions.set(i, s2.get(i));
+			for (int i = 0; i < s2.length; i++) {
+				if (s2[i] != Command.NOOP.id)
+					newActions[i] = s2[i];
 			}
 
 			mergedSolutionStates.add(newActions);
@@ -311,7 +368,168 @@ public class Main {
 		return mergedSolutionStates;
 	}
 
-	public static void main(String[] args) throws IOException {
+	/**
+	 * Runs HDA* on a single-agent level with 1, 2, 4, ... up to maxThreads threads and prints the speedup over one thread.
+	 */
+	public static void benchmarkHDAStar(MAState subLevel, int maxThreads, Long seed) {
+		int agentColor = subLevel.level.getColor(subLevel.agents().values().iterator().next());
+		float baseTime = 0;
+
+		List<String> results = new ArrayList<>();
+		for (int threads = 1; threads <= maxThreads; threads = threads < maxThreads ? Math.min(2 * threads, maxThreads) : threads + 1) {
+			HDAStar search = new HDAStar(subLevel, new Heuristic.AStar(subLevel, agentColor), threads, seed == null ? null : new Random(seed));
+			List<MAState> plan = search.search();
+			float time = search.timeSpent();
+			if (threads == 1)
+				baseTime = time;
+
+			results.add(String.format("%2d threads: %6.2f s, %,10d explored, length %3d, speedup %.2f",
+				threads, time, search.countExplored(), plan == null ? -1 : plan.size() - 1, baseTime / Math.max(time, 0.001f)));
+		}
+
+		System.err.println("HDA* benchmark");
+		for (String result : results)
+			System.err.println(result);
+	}
+
+	/**
+	 * Command line options.
+	 */
+	public static class Options {
+		// Number of HDA* threads for single-agent sub-levels, 1 for the sequential search
+		public int threads = 1;
+		public boolean benchmark = false;
+		// Use the memory-bounded IDA* strategy for single-agent sub-levels, with a transposition table of nodeBudget states
+		public boolean ida = false;
+		public int nodeBudget = 1 << 22;
+		// Use anytime weighted A* for single-agent sub-levels, starting from weight W and returning the best plan after
+		// anytimeSeconds
+		public boolean anytime = false;
+		public double anytimeSeconds = 0;
+		public int W = 5;
+		// Use the box-to-goal assignment heuristic or the box pair pattern database instead of plain A* for single-agent
+		// sub-levels
+		public boolean assignment = false;
+		public boolean pdb = false;
+		// Try conflict-based search for multi-agent sub-levels before the greedy planner, expanding at most cbsNodes
+		// constraint tree nodes
+		public boolean cbs = false;
+		public int cbsNodes = 1024;
+		// Seed of the successor shuffle of best-first searches and HDA*, null to keep generation order
+		public Long seed = null;
+		// Use the bucket open list instead of the indexed heap for best-first searches
+		public boolean bucket = false;
+		// Use an exact explored set instead of the 64-bit fingerprint one (see Strategy for the trade-off)
+		public boolean exactClosed = false;
+
+		public static Options parse(String[] args) {
+			Options options = new Options();
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+					case "-threads":
+						options.threads = Integer.parseInt(args[++i]);
+						break;
+					case "-benchmark":
+						options.benchmark = true;
+						break;
+					case "-ida":
+						options.ida = true;
+						break;
+					case "-budget":
+						options.nodeBudget = Integer.parseInt(args[++i]);
+						break;
+					case "-anytime":
+						options.anytime = true;
+						options.anytimeSeconds = Double.parseDouble(args[++i]);
+						break;
+					case "-w":
+						options.W = Integer.parseInt(args[++i]);
+						break;
+					case "-assignment":
+						options.assignment = true;
+						break;
+					case "-pdb":
+						options.pdb = true;
+						break;
+					case "-cbs":
+						options.cbs = true;
+						break;
+					case "-cbsnodes":
+						options.cbsNodes = Integer.parseInt(args[++i]);
+						break;
+					case "-seed":
+						options.seed = Long.parseLong(args[++i]);
+						break;
+					case "-bucket":
+						options.bucket = true;
+						break;
+					case "-exact":
+						options.exactClosed = true;
+						break;
+					default:
+						// The other search strategy flags of run.sh are not used
+						break;
+				}
+			}
+			return options;
+		}
+	}
+
+	/**
+	 * Applies the explored set and tie-break options to a strategy before its search starts.
+	 */
+	private static Strategy configure(Strategy strategy, Options options) {
+		if (options.exactClosed)
+			strategy.setClosedSet(new ClosedSet.Exact());
+		if (options.seed != null)
+			strategy.setTieBreak(new Random(options.seed));
+		return strategy;
+	}
+
+	public static List<MAState> solveSubLevel(MAState subLevel, Options options) throws InterruptedException, ExecutionException {
+		System.err.println(subLevel);
+
+		if (subLevel.isSAState()) {
+			Character agentType = subLevel.agents().values().iterator().next();
+			int agentColor = subLevel.level.getColor(agentType);
+			if (options.benchmark)
+				benchmarkHDAStar(subLevel, Math.max(options.threads, Runtime.getRuntime().availableProcessors()), options.seed);
+
+			Heuristic heuristic;
+			if (options.pdb)
+				heuristic = new Heuristic.PatternDatabase(subLevel, agentColor);
+			else if (options.assignment)
+				heuristic = new Heuristic.Assignment(subLevel, agentColor);
+			else
+				heuristic = new Heuristic.AStar(subLevel, agentColor);
+
+			if (options.threads > 1)
+				return new HDAStar(subLevel, heuristic, options.threads, options.seed == null ? null : new Random(options.seed)).search();
+
+			if (options.anytime) {
+				long deadline = System.currentTimeMillis() + (long) (1000 * options.anytimeSeconds);
+				return new AnytimeWAStar(subLevel, new Heuristic.WeightedAStar(subLevel, agentColor, options.W), deadline).search();
+			}
+
+			Strategy strategy;
+			if (options.ida)
+				strategy = new Strategy.StrategyIDA(heuristic, options.nodeBudget);
+			else
+				strategy = options.bucket ? new Strategy.StrategyBucket(heuristic) : new Strategy.StrategyBestFirst(heuristic);
+			return Agent.saSearch(subLevel, configure(strategy, options));
+		}
+
+		if (options.cbs) {
+			List<MAState> plan = new CBS(subLevel, options.cbsNodes).search();
+			if (plan != null)
+				return plan;
+		}
+		return maSolve(subLevel, options);
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+		Options options = Options.parse(args);
+
 		BufferedReader serverMessages = new BufferedReader(new InputStreamReader(System.in));
 
 		// Identify ourselves
@@ -335,35 +553,37 @@ public class Main {
 
 
 		List<MAState> subLevels = splitLevel(initialState);
-		List<List<Command>> maSolution = new ArrayList<>(Collections.singletonList(Collections.nCopies(initialState.numAgents, new Command.NoOp())));
+		List<byte[]> maSolution = new ArrayList<>(Collections.singletonList(new byte[initialState.level.numAgents]));
 
+		// Sub-levels share no cells, so they are solved in parallel. The largest are started first, so a big region does
+		// not end up starting last, and plans are merged in the order they complete.
+		subLevels.sort(Comparator.comparingInt((MAState subLevel) -> subLevel.level.getCellCount()).reversed());
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(subLevels.size(), Runtime.getRuntime().availableProcessors())));
+		CompletionService<List<MAState>> completionService = new ExecutorCompletionService<>(executor);
 		for (MAState subLevel : subLevels) {
-			System.err.println(subLevel);
-			List<MAState> subSolution;
-
-			if (subLevel.isSAState()){
-				Character agentType = subLevel.agents.values().iterator().next();
-				String agentColor = initialState.color.get(agentType);
-				Strategy.StrategyBestFirst strategy = new Strategy.StrategyBestFirst(new Heuristic.AStar(subLevel,agentColor));
-				subSolution = Agent.saSearch(subLevel, strategy);
-			}
-			else {
-				subSolution = maSolve(subLevel);
-			}
-			System.err.println(maSolution);
-			System.err.println(subSolution);
-			assert subSolution != null;
+			completionService.submit(() -> solveSubLevel(subLevel, options));
+		}
+
+		try {
+			for (int i = 0; i < subLevels.size(); i++) {
+				List<MAState> subSolution = completionService.take().get();
+				System.err.println(maSolution.stream().map(Command::toString).collect(Collectors.joining(", ", "[", "]")));
+				System.err.println(subSolution);
+				assert subSolution != null;
 
-			List<List<Command>> solutionActions = subSolution.stream().map(x -> x.actions).collect(Collectors.toList());
-			maSolution = mergeSolutions(maSolution, solutionActions);
+				List<byte[]> solutionActions = subSolution.stream().map(x -> x.actions).collect(Collectors.toList());
+				maSolution = mergeSolutions(maSolution, solutionActions);
+			}
+		} finally {
+			executor.shutdownNow();
 		}
 
 
-		for (List<Command> actions : maSolution.subList(1, maSolution.size())) {
+		for (byte[] actions : maSolution.subList(1, maSolution.size())) {
 			List<Boolean> res = serverComm.send(actions);
 			for (Boolean ok : res) {
 				if (!ok) {
-					System.err.printf("Illegal move: %s", actions);
+					System.err.printf("Illegal move: %s", Command.toString(actions));
 					break;
 				}
 			}
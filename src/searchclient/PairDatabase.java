@@ -0,0 +1,227 @@
+package searchclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Pattern database for a pair of boxes: the least number of box moves that bring a box of letter a and a box of letter
+ * b onto goals of their letters, for every pair of cells the two boxes can be in. Agents and all other boxes are
+ * abstracted away; a box can move to a free neighbour if the agent has a free cell next to the box to push from, or
+ * next to the neighbour to pull into. Every move in the real level moves a single box, so the costs of disjoint pairs
+ * can be added up without overestimating.
+ *
+ * The costs are found with a backward BFS from all goal configurations and stored one byte per pair of cells. The BFS
+ * of a pair runs on a single thread; Heuristic.PatternDatabase builds the databases of different pairs in parallel.
+ * Like the distance table they are cached on disk and memory-mapped by later runs.
+ */
+public class PairDatabase {
+	// Costs of 255 and more are stored as 255, which also marks configurations from which the goals cannot be reached
+	public static final int MAX_COST = 255;
+	// Levels with more cells are not worth an n^2 table
+	public static final int MAX_CELLS = 4096;
+
+	// Changed whenever the costs are computed differently, so stale cache files are not loaded
+	private static final int MAGIC = 0x50444234;
+	// Magic, width, height and number of cells, followed by the layout
+	private static final int HEADER_INTS = 4;
+
+	private final int numCells;
+	// Cost with box a in cell c1 and box b in cell c2 is costs.get(c1 * numCells + c2) & 0xFF
+	private final ByteBuffer costs;
+
+	private PairDatabase(int numCells, ByteBuffer costs) {
+		this.numCells = numCells;
+		this.costs = costs;
+	}
+
+	/**
+	 * Returns the least number of box moves to bring both boxes onto goals, or MAX_COST if that is not possible or
+	 * takes at least MAX_COST moves.
+	 */
+	public int cost(int cellA, int cellB) {
+		return this.costs.get(cellA * this.numCells + cellB) & 0xFF;
+	}
+
+	/**
+	 * Loads the database of the two letters from the cache, or computes and stores it. Both letters must have goals.
+	 */
+	static PairDatabase of(Level level, char a, char b) {
+		int numCells = level.getCellCount();
+		assert numCells <= MAX_CELLS;
+		Path file = DistanceTable.CACHE_DIR.resolve(String.format("pdb-%016x-%c%c.bin", goalHash(level, a, b), a, b));
+
+		try {
+			PairDatabase database = load(file, level, a, b);
+			if (database != null)
+				return database;
+		} catch (IOException e) {
+			System.err.format("Could not read pattern database %s: %s\n", file, e);
+		}
+
+		byte[] costs = compute(level, a, b);
+		try {
+			store(file, level, a, b, costs);
+		} catch (IOException e) {
+			System.err.format("Could not write pattern database %s: %s\n", file, e);
+		}
+		return new PairDatabase(numCells, ByteBuffer.wrap(costs));
+	}
+
+	private static byte[] compute(Level level, char a, char b) {
+		int numCells = level.getCellCount();
+		byte[] costs = new byte[numCells * numCells];
+		boolean[] seen = new boolean[numCells * numCells];
+		int[] queue = new int[numCells * numCells];
+		int head = 0, tail = 0;
+
+		for (int goalA : level.getGoalCells(a)) {
+			for (int goalB : level.getGoalCells(b)) {
+				if (goalA != goalB) {
+					seen[goalA * numCells + goalB] = true;
+					queue[tail++] = goalA * numCells + goalB;
+				}
+			}
+		}
+
+		while (head < tail) {
+			int config = queue[head++];
+			int cellA = config / numCells, cellB = config % numCells;
+			int cost = Math.min((costs[config] & 0xFF) + 1, MAX_COST);
+
+			// Configurations one box move away: either box came from a neighbouring cell
+			for (Command.Dir dir : Command.Dir.values()) {
+				int fromA = movedFrom(level, cellA, dir, cellB);
+				if (fromA != -1 && !seen[fromA * numCells + cellB]) {
+					seen[fromA * numCells + cellB] = true;
+					costs[fromA * numCells + cellB] = (byte) cost;
+					queue[tail++] = fromA * numCells + cellB;
+				}
+
+				int fromB = movedFrom(level, cellB, dir, cellA);
+				if (fromB != -1 && !seen[cellA * numCells + fromB]) {
+					seen[cellA * numCells + fromB] = true;
+					costs[cellA * numCells + fromB] = (byte) cost;
+					queue[tail++] = cellA * numCells + fromB;
+				}
+			}
+		}
+
+		for (int config = 0; config < costs.length; config++)
+			if (!seen[config])
+				costs[config] = (byte) MAX_COST;
+		return costs;
+	}
+
+	/**
+	 * Returns the cell from which a box can have moved to cell in direction dir while the other box was in cell other,
+	 * or -1 if there is none. The agent can push from any neighbour of the box other than cell, and pull by backing into
+	 * any neighbour of cell other than the box's, so pushes and pulls need not go in a straight line.
+	 */
+	private static int movedFrom(Level level, int cell, Command.Dir dir, int other) {
+		int from = level.neighbour(cell, Level.opposite(dir));
+		if (from == -1 || from == other)
+			return -1;
+
+		boolean canPush = hasFreeNeighbour(level, from, cell, other);
+		boolean canPull = hasFreeNeighbour(level, cell, from, other);
+		return canPush || canPull ? from : -1;
+	}
+
+	/**
+	 * Returns true if the cell has a neighbour that is neither a wall nor one of the two given cells.
+	 */
+	private static boolean hasFreeNeighbour(Level level, int cell, int except1, int except2) {
+		for (Command.Dir dir : Command.Dir.values()) {
+			int neighbour = level.neighbour(cell, dir);
+			if (neighbour != -1 && neighbour != except1 && neighbour != except2)
+				return true;
+		}
+		return false;
+	}
+
+	private static PairDatabase load(Path file, Level level, char a, char b) throws IOException {
+		if (!Files.isRegularFile(file))
+			return null;
+
+		int numCells = level.getCellCount();
+		byte[] layout = layout(level, a, b);
+		int headerBytes = 4 * HEADER_INTS + layout.length;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() != headerBytes + (long) numCells * numCells)
+				return null;
+
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != level.width || buffer.getInt(8) != level.height
+				|| buffer.getInt(12) != numCells)
+				return null;
+
+			// A hash collision between levels of the same size is caught by comparing the walls and goals themselves
+			byte[] fileLayout = new byte[layout.length];
+			buffer.position(4 * HEADER_INTS);
+			buffer.get(fileLayout);
+			if (!Arrays.equals(layout, fileLayout))
+				return null;
+
+			buffer.position(headerBytes);
+			return new PairDatabase(numCells, buffer.slice());
+		}
+	}
+
+	/**
+	 * Writes the database to a temporary file that is then moved into place, as for the distance table.
+	 */
+	private static void store(Path file, Level level, char a, char b, byte[] costs) throws IOException {
+		Files.createDirectories(DistanceTable.CACHE_DIR);
+		Path tmp = Files.createTempFile(DistanceTable.CACHE_DIR, "pdb-", ".tmp");
+		try {
+			byte[] layout = layout(level, a, b);
+			ByteBuffer buffer = ByteBuffer.allocate(4 * HEADER_INTS + layout.length + costs.length).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC).putInt(level.width).putInt(level.height).putInt(level.getCellCount());
+			buffer.put(layout);
+			buffer.put(costs);
+			Files.write(tmp, buffer.array());
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * The wall bitmap of the level, then for each of the two letters the number of its goals and their cells, as
+	 * little-endian ints.
+	 */
+	private static byte[] layout(Level level, char a, char b) {
+		byte[] walls = DistanceTable.wallBitmap(level);
+		int[] goalsA = level.getGoalCells(a), goalsB = level.getGoalCells(b);
+		ByteBuffer buffer = ByteBuffer.allocate(walls.length + 4 * (2 + goalsA.length + goalsB.length)).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put(walls);
+		for (int[] goals : new int[][]{goalsA, goalsB}) {
+			buffer.putInt(goals.length);
+			for (int goalCell : goals)
+				buffer.putInt(goalCell);
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Hash of the wall layout and the goal cells of the two letters, which is all the database depends on.
+	 */
+	private static long goalHash(Level level, char a, char b) {
+		long hash = DistanceTable.layoutHash(level);
+		for (char c : new char[]{a, b}) {
+			hash = (hash ^ c) * 0x100000001B3L;
+			for (int goalCell : level.getGoalCells(c))
+				hash = (hash ^ goalCell) * 0x100000001B3L;
+		}
+		return hash;
+	}
+}
@@ -1,7 +1,6 @@
 package searchclient;
 
 import java.util.Comparator;
-import java.util.Objects;
 
 public class Position implements Comparable<Position> {
 	private final int row;
@@ -48,7 +47,7 @@ public class Position implements Comparable<Position> {
 
 	@Override
 	public int hashCode() {
-		return Objects.hash(this.row, this.col);
+		return 31 * this.row + this.col;
 	}
 
 	private static final Comparator<Position> comparator = Comparator.comparingInt(Position::getRow).thenComparingInt(Position::getCol);
@@ -0,0 +1,224 @@
+package searchclient;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Space-time reservations of a joint plan that the other agents have committed to, for the search of an agent that
+ * plans around them. For every step of the plan the table records which cells its objects enter and which cells its
+ * boxes are moved from, indexed by (step, cell), so the search can check its own commands against the plan without
+ * building the planned state of every step.
+ *
+ * Every cell an action moves into must be free at the start of the joint action, so two objects can never swap cells or
+ * follow each other within a step: a cell entered in a step is reserved over the edge into it as well, and must be free
+ * in the state the step starts from.
+ *
+ * The table does not tell agents apart. A plan of all agents can be used by the search of any agent that only does
+ * NoOps in the plan after the state its search starts from.
+ */
+public class ReservationTable {
+	private final List<MAState> plan;
+	private final int startG;
+	private final int numSteps;
+	private final int numCells;
+	private final byte[] noOps;
+
+	// Bit step * numCells + cell is set if an object enters the cell in that step (steps are 1-based)
+	private final long[] entered;
+	// Bit step * numCells + cell is set if a box is moved out of the cell in that step
+	private final long[] boxSources;
+	// Per step, the cells entered, and the cells and letters of the boxes moved
+	private final int[][] enteredCells;
+	private final int[][] boxCells;
+	private final char[][] boxLetters;
+	// Change to the key made by each step
+	private final long[] keyChanges;
+	// Last step in which each cell is entered or left, 0 if never
+	private final int[] lastChange;
+
+	public ReservationTable(List<MAState> plan) {
+		MAState first = plan.get(0);
+		this.plan = plan;
+		this.startG = first.g();
+		this.numSteps = plan.size() - 1;
+		this.numCells = first.level.getCellCount();
+		this.noOps = new byte[first.level.numAgents];
+
+		long bits = (long) (this.numSteps + 1) * this.numCells;
+		this.entered = new long[(int) ((bits + 63) >>> 6)];
+		this.boxSources = new long[this.entered.length];
+		this.enteredCells = new int[this.numSteps + 1][];
+		this.boxCells = new int[this.numSteps + 1][];
+		this.boxLetters = new char[this.numSteps + 1][];
+		this.keyChanges = new long[this.numSteps + 1];
+		this.lastChange = new int[this.numCells];
+
+		for (int step = 1; step <= this.numSteps; step++) {
+			MAState before = plan.get(step - 1), after = plan.get(step);
+			int[] agentMoves = after.getAgentMoves();
+			int[] boxMoves = after.getBoxMoves();
+			this.keyChanges[step] = before.key() ^ after.key();
+
+			// Cells left and entered by the objects moved in this step. A pushed box leaves the cell its agent enters,
+			// and a pulled box enters the cell its agent leaves; those cells are never free.
+			int[] left = new int[(agentMoves.length + boxMoves.length) / 2];
+			int[] arrived = new int[left.length];
+			int numMoves = 0;
+			for (int i = 0; i < agentMoves.length; i += 2, numMoves++) {
+				left[numMoves] = before.getAgentCell(agentMoves[i]);
+				arrived[numMoves] = agentMoves[i + 1];
+			}
+			this.boxCells[step] = new int[boxMoves.length / 2];
+			this.boxLetters[step] = new char[boxMoves.length / 2];
+			for (int i = 0; i < boxMoves.length; i += 2, numMoves++) {
+				left[numMoves] = boxMoves[i];
+				arrived[numMoves] = boxMoves[i + 1];
+				this.boxCells[step][i / 2] = boxMoves[i];
+				this.boxLetters[step][i / 2] = before.getBoxTypeAt(boxMoves[i]);
+				this.set(this.boxSources, step, boxMoves[i]);
+			}
+
+			int[] cells = new int[numMoves];
+			int numEntered = 0;
+			for (int i = 0; i < numMoves; i++) {
+				this.lastChange[left[i]] = step;
+				this.lastChange[arrived[i]] = step;
+				if (!contains(left, arrived[i])) {
+					cells[numEntered++] = arrived[i];
+					this.set(this.entered, step, arrived[i]);
+				}
+			}
+			this.enteredCells[step] = Arrays.copyOf(cells, numEntered);
+		}
+	}
+
+	private void set(long[] bitSet, int step, int cell) {
+		long bit = (long) step * this.numCells + cell;
+		bitSet[(int) (bit >>> 6)] |= 1L << bit;
+	}
+
+	private boolean get(long[] bitSet, int step, int cell) {
+		if (step > this.numSteps)
+			return false;
+		long bit = (long) step * this.numCells + cell;
+		return (bitSet[(int) (bit >>> 6)] & 1L << bit) != 0;
+	}
+
+	private static boolean contains(int[] cells, int cell) {
+		for (int c : cells)
+			if (c == cell)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Returns the step of the plan that the successors of the given state are paired with. Steps after the end of the
+	 * plan are all NoOps.
+	 */
+	public int stepAfter(MAState state) {
+		return state.g() - this.startG + 1;
+	}
+
+	/**
+	 * Returns true if an object of the plan enters the cell in the given step.
+	 */
+	public boolean isEntered(int step, int cell) {
+		return this.get(this.entered, step, cell);
+	}
+
+	/**
+	 * Returns true if a box of the plan is moved out of the cell in the given step.
+	 */
+	public boolean isBoxSource(int step, int cell) {
+		return this.get(this.boxSources, step, cell);
+	}
+
+	/**
+	 * Commands of the plan in the given step, indexed by agent id.
+	 */
+	public byte[] actions(int step) {
+		return step > this.numSteps ? this.noOps : this.plan.get(step).actions;
+	}
+
+	/**
+	 * Change to the key made by the objects moved in the given step.
+	 */
+	public long keyChange(int step) {
+		return step > this.numSteps ? 0 : this.keyChanges[step];
+	}
+
+	public MAState finalState() {
+		return this.plan.get(this.numSteps);
+	}
+
+	/**
+	 * Returns true if the commands of the given step can be carried out in a state with the given occupancy: the cells
+	 * entered are free and the boxes moved are still in place. Only the planning agent's objects can be in the way, as
+	 * the objects of the plan are where the plan has them.
+	 */
+	boolean admits(int step, char[] occupancy) {
+		if (step > this.numSteps)
+			return true;
+
+		for (int cell : this.enteredCells[step])
+			if (occupancy[cell] != 0)
+				return false;
+		for (int i = 0; i < this.boxCells[step].length; i++)
+			if (occupancy[this.boxCells[step][i]] != this.boxLetters[step][i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Returns true if the rest of the plan can be carried out when the given agent stops in the given state, and the
+	 * final state then satisfies more goals than that of the plan alone. The state can only differ from the planned state
+	 * at the same step in the cells of the agent and the boxes it moved; the rest of the plan must leave those cells
+	 * alone, and the goals among them decide the outcome.
+	 */
+	public boolean isImprovedBy(MAState state, int agentId) {
+		int time = state.g() - this.startG;
+		MAState planned = this.plan.get(Math.min(time, this.numSteps));
+
+		int[] cells = new int[2 + state.getBoxCount() + planned.getBoxCount()];
+		int numCells = 0;
+		if (state.getAgentCell(agentId) != planned.getAgentCell(agentId)) {
+			cells[numCells++] = state.getAgentCell(agentId);
+			cells[numCells++] = planned.getAgentCell(agentId);
+		}
+
+		// Both box arrays are sorted by cell
+		for (int i = 0, j = 0; i < state.getBoxCount() || j < planned.getBoxCount(); ) {
+			int cell = i < state.getBoxCount() ? state.getBoxCell(i) : Integer.MAX_VALUE;
+			int plannedCell = j < planned.getBoxCount() ? planned.getBoxCell(j) : Integer.MAX_VALUE;
+			if (cell == plannedCell) {
+				if (state.getBoxType(i) != planned.getBoxType(j))
+					cells[numCells++] = cell;
+				i++;
+				j++;
+			} else if (cell < plannedCell) {
+				cells[numCells++] = cell;
+				i++;
+			} else {
+				cells[numCells++] = plannedCell;
+				j++;
+			}
+		}
+
+		Arrays.sort(cells, 0, numCells);
+		int goalChange = 0;
+		for (int i = 0; i < numCells; i++) {
+			int cell = cells[i];
+			if (i > 0 && cell == cells[i - 1])
+				continue;
+			if (this.lastChange[cell] > time)
+				return false;
+
+			Position position = state.level.positionOf(cell);
+			if (state.isGoalSatisfied(position))
+				goalChange--;
+			if (planned.isGoalSatisfied(position))
+				goalChange++;
+		}
+		return goalChange < 0;
+	}
+}
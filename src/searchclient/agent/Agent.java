@@ -1,97 +1,107 @@
 package searchclient.agent;
 
-import searchclient.Command;
 import searchclient.MAState;
+import searchclient.ReservationTable;
+import searchclient.util.IndexedHeap;
+import searchclient.util.LongHashSet;
 import searchclient.util.Memory;
 
+import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Agent {
 
+	/**
+	 * Best plan found so far by a set of searches running in parallel, one per agent. Plans are ordered by length and
+	 * then by the rank of their search, the order in which the sequential maSolve loop compared them.
+	 */
+	public static class PlanBound {
+		private final AtomicLong best = new AtomicLong(Long.MAX_VALUE);
+
+		private static long pack(int length, int rank) {
+			return (long) length << 32 | rank;
+		}
+
+		/**
+		 * Returns true if a plan of the given length found by the search of the given rank would beat the best plan so far.
+		 */
+		public boolean admits(int length, int rank) {
+			return pack(length, rank) < this.best.get();
+		}
+
+		public void offer(int length, int rank) {
+			this.best.accumulateAndGet(pack(length, rank), Math::min);
+		}
+	}
+
 	public static ArrayList<MAState> search(char agent, List<MAState> alreadyPlanned, Strategy strategy) {
-		MAState initialState = alreadyPlanned.get(0);
+		return search(agent, alreadyPlanned.get(0), new ReservationTable(alreadyPlanned), strategy, System.err, null, 0);
+	}
+
+	/**
+	 * Searches for a plan from initialState in which the agent achieves a goal while the other agents follow the plan of
+	 * the reservation table. Progress is written to log. If bound is given, states that cannot lead to a plan beating the
+	 * best plan of the other searches sharing the bound are dropped, and the plan found is offered to the bound under the
+	 * given rank.
+	 */
+	public static ArrayList<MAState> search(char agent, MAState initialState, ReservationTable reservations, Strategy strategy, PrintStream log, PlanBound bound, int rank) {
+		int agentId = agent - '0';
 		strategy.addToFrontier(initialState);
 
-		int origGoalCount = alreadyPlanned.get(alreadyPlanned.size() - 1).goalCount();
+		int origGoalCount = reservations.finalState().goalCount();
 
-		System.err.format("Search starting (%c) with %d goals using strategy %s.\n", agent, origGoalCount, strategy.toString());
+		log.format("Search starting (%c) with %d goals using strategy %s.\n", agent, origGoalCount, strategy.toString());
 
 		long iterations = 0;
 		while (true) {
 			if (strategy.frontierIsEmpty()) {
-				System.err.println(String.join("\t",
+				log.println(String.join("\t",
 					strategy.searchStatus(),
 					Memory.stringRep()));
-				System.err.println("Search failed :(");
+				log.println("Search failed :(");
 
 				return null;
 			}
 
 			MAState leafState = strategy.getAndRemoveLeaf();
-
-			int deltaG = leafState.g() - initialState.g();
+			if (bound != null && !bound.admits(leafState.g() - initialState.g(), rank))
+				continue;
 
 			if (iterations % 10_000 == 0)
-				System.err.println(String.join("\t",
+				log.println(String.join("\t",
 					strategy.searchStatus(),
 					strategy.describeState(leafState),
 					Memory.stringRep()));
 
-			if (!leafState.isInitialState() && leafState.agentAchievedGoal(agent)) {
-				MAState endState = leafState;
-
-				boolean isApplicable = true;
-				for (MAState state : alreadyPlanned.subList(Math.min(deltaG + 1, alreadyPlanned.size()), alreadyPlanned.size())) {
-					if (!endState.isApplicable(state.actions)) {
-						isApplicable = false;
-						break;
-					}
-					endState = new MAState(endState, state.actions);
-				}
+			// The rest of the reserved plan must stay applicable with the agent stopped here, and leave fewer goals
+			if (!leafState.isInitialState() && leafState.agentAchievedGoal(agent) && reservations.isImprovedBy(leafState, agentId)) {
+				ArrayList<MAState> plan = leafState.extractPlanWithInitial();
 
-				if (isApplicable && endState.goalCount() < origGoalCount) {
-					ArrayList<MAState> plan = leafState.extractPlanWithInitial();
-
-					System.err.println(String.join("\t",
-						strategy.searchStatus(),
-						strategy.describeState(leafState),
-						Memory.stringRep()));
-					System.err.printf("Found solution of length %d\n", plan.size() - 1);
+				log.println(String.join("\t",
+					strategy.searchStatus(),
+					strategy.describeState(leafState),
+					Memory.stringRep()));
+				log.printf("Found solution of length %d\n", plan.size() - 1);
+				if (bound != null)
+					bound.offer(plan.size() - 1, rank);
 
-					return plan;
-				}
+				return plan;
 			}
 
-			// Pick out state based on leafState.g() and alreadyPlanned list.
-			// If index out of bounds just get last state as nothing will change yet.
-
 			strategy.addToExplored(leafState);
 
-			// Get nextState from alreadyPlanned
-			// vs construct nextState from leafState and move from alreadyPlanned.
-
-			// Need to identify agents by character rather than position
-			// as position changes across states.
-			boolean insideList = (deltaG + 1) < (alreadyPlanned.size());
-			int numAgents = leafState.numAgents;
-
-			MAState state;
-			if (insideList) {
-				List<Command> actions = alreadyPlanned.get(deltaG + 1).actions;
-				if (!leafState.isApplicable(actions))
+			// The other agents' commands come from the reservation table, and there are no successors if the agent is in
+			// their way. Only successors with an unseen key are built
+			for (MAState.Successor successor : leafState.getSuccessors(agent, reservations, strategy.getTieBreak())) {
+				if (strategy.isExplored(successor))
 					continue;
 
-				state = new MAState(leafState, actions);
-			} else {
-				state = new MAState(leafState, Collections.nCopies(numAgents, new Command.NoOp()));
-			}
-
-			for (MAState n : leafState.getExpandedStates(agent, state)) { // The list of expanded states is shuffled randomly; see State.java.
-				if (!strategy.isExplored(n) && !strategy.inFrontier(n)) {
-					strategy.addToFrontier(n);
-				}
+				if (strategy.inFrontier(successor.key))
+					strategy.improveFrontier(successor);
+				else
+					strategy.addToFrontier(successor.toState());
 			}
 			iterations++;
 		}
@@ -102,8 +112,9 @@ public class Agent {
 		System.err.format("Search starting with strategy %s.\n", strategy.toString());
 		strategy.addToFrontier(initialState);
 
-		Character agent = initialState.agents.values().iterator().next();
+		Character agent = initialState.agents().values().iterator().next();
 
+		byte[] noOps = new byte[initialState.level.numAgents];
 		long iterations = 0;
 		while (true) {
 			if (strategy.frontierIsEmpty()) {
@@ -144,14 +155,98 @@ public class Agent {
 
 			// TODO: Dynamically add NoOp states to fill alreadyPlanned enough to just index
 
-			MAState nextState = new MAState(leafState, Collections.nCopies(initialState.numAgents, new Command.NoOp()));
-			for (MAState n : leafState.getExpandedStates(agent, nextState)) { // The list of expanded states is shuffled randomly; see State.java.
-				if (!strategy.isExplored(n) && !strategy.inFrontier(n)) {
-					strategy.addToFrontier(n);
-				}
+			MAState nextState = new MAState(leafState, noOps);
+			// Only successors with an unseen key are built
+			for (MAState.Successor successor : leafState.getSuccessors(agent, nextState, strategy.getTieBreak(), true)) {
+				if (strategy.isExplored(successor))
+					continue;
+
+				if (strategy.inFrontier(successor.key))
+					strategy.improveFrontier(successor);
+				else
+					strategy.addToFrontier(successor.toState());
 			}
 			iterations++;
 		}
 	}
 
+	/**
+	 * A* search for a plan that achieves all goals of the level of initialState, in which the agent and its boxes never
+	 * occupy a cell of forbidden[t] at time step t. This is the low level of conflict-based search, where the state only
+	 * holds the agent, its own boxes and boxes no agent can move. Time is part of the search state up to the last
+	 * forbidden time step. Returns null if there is no such plan or more than maxExpanded states are expanded.
+	 */
+	public static ArrayList<MAState> constrainedSearch(MAState initialState, Heuristic heuristic, int[][] forbidden, long maxExpanded) {
+		char agent = initialState.agents().values().iterator().next();
+		if (isForbidden(initialState, agent, forbidden, 0))
+			return null;
+
+		IndexedHeap<MAState> open = new IndexedHeap<>(heuristic);
+		LongHashSet closed = new LongHashSet(1 << 10);
+		open.add(timedKey(initialState.key(), 0, forbidden), initialState);
+
+		byte[] noOps = new byte[initialState.level.numAgents];
+		long expanded = 0;
+		while (!open.isEmpty()) {
+			MAState leafState = open.poll();
+			closed.add(timedKey(leafState.key(), leafState.g(), forbidden));
+
+			if (leafState.isGoalState()) {
+				// The agent waits in the goal state, which must not break a later constraint
+				boolean waitable = true;
+				for (int t = leafState.g() + 1; t < forbidden.length; t++)
+					waitable &= !isForbidden(leafState, agent, forbidden, t);
+				if (waitable)
+					return leafState.extractPlanWithInitial();
+			}
+
+			if (++expanded > maxExpanded)
+				return null;
+
+			// Waiting is the NoOp successor; once no constraints lie ahead its timed key is that of the leaf, which is closed
+			MAState nextState = new MAState(leafState, noOps);
+			for (MAState.Successor successor : leafState.getSuccessors(agent, nextState, null)) {
+				int g = successor.g();
+				long key = timedKey(successor.key, g, forbidden);
+				if (closed.contains(key))
+					continue;
+
+				MAState existing = open.get(key);
+				if (existing != null && existing.g() <= g)
+					continue;
+
+				MAState n = successor.toState();
+				if (isForbidden(n, agent, forbidden, g))
+					continue;
+
+				if (existing == null)
+					open.add(key, n);
+				else
+					open.replace(key, n);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Key of a state at time step g. Time steps after the last constraint are all alike.
+	 */
+	private static long timedKey(long key, int g, int[][] forbidden) {
+		return key ^ Math.min(g, forbidden.length) * 0x9E3779B97F4A7C15L;
+	}
+
+	private static boolean isForbidden(MAState n, char agent, int[][] forbidden, int t) {
+		if (t >= forbidden.length || forbidden[t] == null)
+			return false;
+
+		int agentColor = n.level.getColor(agent);
+		for (int cell : forbidden[t]) {
+			if (n.getAgentCell(agent - '0') == cell)
+				return true;
+			char box = n.getBoxTypeAt(cell);
+			if (box != 0 && n.level.getColor(box) == agentColor)
+				return true;
+		}
+		return false;
+	}
 }
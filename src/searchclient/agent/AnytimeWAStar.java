@@ -0,0 +1,138 @@
+package searchclient.agent;
+
+import searchclient.MAState;
+import searchclient.util.IndexedHeap;
+import searchclient.util.LongHashSet;
+import searchclient.util.LongIntHashMap;
+import searchclient.util.Memory;
+
+import java.util.ArrayList;
+
+/**
+ * Anytime weighted A* for single-agent levels, in the style of ARA*. The first plan is found quickly with a high weight.
+ * The weight is then lowered by one per iteration, down to 1, and every iteration keeps the open list of the previous
+ * one. States that get a cheaper path after they were expanded are carried over to the next iteration instead of being
+ * re-expanded right away. The best plan found so far is returned when the deadline passes; if no plan has been found
+ * by then, the search goes on until the first one is.
+ */
+public class AnytimeWAStar {
+    private final MAState initialState;
+    private final Heuristic.WeightedAStar heuristic;
+    private final char agent;
+    private final long deadline;
+
+    private final IndexedHeap<MAState> open;
+    // Lowest g each state has been reached with
+    private final LongIntHashMap bestG;
+    // Expanded in the current iteration
+    private final LongHashSet closed;
+    // Expanded in the current iteration and reached again with a lower g since
+    private final ArrayList<MAState> inconsistent;
+    private MAState incumbent;
+    private long expanded;
+    private final long startTime;
+
+    /**
+     * @param deadline wall-clock time in milliseconds (as System.currentTimeMillis) at which the best plan is returned
+     */
+    public AnytimeWAStar(MAState initialState, Heuristic.WeightedAStar heuristic, long deadline) {
+        this.initialState = initialState;
+        this.heuristic = heuristic;
+        this.agent = initialState.agents().values().iterator().next();
+        this.deadline = deadline;
+
+        this.open = new IndexedHeap<>(heuristic);
+        this.bestG = new LongIntHashMap(1 << 16);
+        this.closed = new LongHashSet(1 << 16);
+        this.inconsistent = new ArrayList<>();
+        this.startTime = System.currentTimeMillis();
+    }
+
+    public ArrayList<MAState> search() {
+        System.err.format("Search starting with %s.\n", this.toString());
+
+        if (this.initialState.isGoalState())
+            return this.initialState.extractPlanWithInitial();
+
+        this.open.add(this.initialState.key(), this.initialState);
+        this.bestG.put(this.initialState.key(), this.initialState.g());
+
+        while (true) {
+            boolean finished = this.improvePath();
+            System.err.println(String.join("\t",
+                    String.format("W = %d: %s", this.heuristic.getW(), this.incumbent == null ? "no plan" : "plan of length " + this.incumbent.g()),
+                    this.searchStatus(),
+                    Memory.stringRep()));
+
+            if (!finished || this.heuristic.getW() <= 1 || this.open.isEmpty() && this.inconsistent.isEmpty())
+                break;
+
+            this.heuristic.setW(this.heuristic.getW() - 1);
+            for (MAState n : this.inconsistent) {
+                MAState existing = this.open.get(n.key());
+                if (existing == null)
+                    this.open.add(n.key(), n);
+                else if (n.g() < existing.g())
+                    this.open.replace(n.key(), n);
+            }
+            this.inconsistent.clear();
+            this.closed.clear();
+            this.open.reorder();
+        }
+
+        return this.incumbent == null ? null : this.incumbent.extractPlanWithInitial();
+    }
+
+    /**
+     * Expands states until none in the open list can lead to a plan shorter than the incumbent. Returns false if the
+     * deadline passed first (and a plan is known).
+     */
+    private boolean improvePath() {
+        byte[] noOps = new byte[this.initialState.level.numAgents];
+
+        while (!this.open.isEmpty()) {
+            if (this.incumbent != null && (this.expanded & 0xFF) == 0 && System.currentTimeMillis() >= this.deadline)
+                return false;
+
+            MAState leafState = this.open.peek();
+            if (this.incumbent != null && this.heuristic.f(leafState) >= this.incumbent.g())
+                return true;
+
+            this.open.poll();
+            this.closed.add(leafState.key());
+            this.expanded++;
+
+            MAState nextState = new MAState(leafState, noOps);
+            for (MAState.Successor successor : leafState.getSuccessors(this.agent, nextState, null, true)) {
+                int g = this.bestG.get(successor.key);
+                if (g != -1 && g <= successor.g())
+                    continue;
+                this.bestG.put(successor.key, successor.g());
+
+                MAState n = successor.toState();
+                if (n.isGoalState()) {
+                    if (this.incumbent == null || n.g() < this.incumbent.g())
+                        this.incumbent = n;
+                } else if (this.closed.contains(successor.key)) {
+                    this.inconsistent.add(n);
+                } else if (this.open.contains(successor.key)) {
+                    this.open.replace(successor.key, n);
+                } else {
+                    this.open.add(successor.key, n);
+                }
+            }
+        }
+        return true;
+    }
+
+    public String searchStatus() {
+        float time = (System.currentTimeMillis() - this.startTime) / 1000f;
+        return String.format("#Expanded: %,6d, #Open: %,6d, Time: %3.2f s (%,.2f/s)",
+                this.expanded, this.open.size(), time, this.expanded / time);
+    }
+
+    @Override
+    public String toString() {
+        return "anytime " + this.heuristic.toString();
+    }
+}
@@ -0,0 +1,366 @@
+package searchclient.agent;
+
+import searchclient.Command;
+import searchclient.DistanceTable;
+import searchclient.Level;
+import searchclient.MAState;
+import searchclient.Position;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Conflict-based search for multi-agent levels. Every agent plans on its own, for its own boxes and goals: the boxes
+ * of a colour are split between the agents of that colour (each goes to the nearest one), and every box goal goes to
+ * the owner of the nearest unclaimed box of its letter.
+ *
+ * A high-level search over a tree of constraints resolves the conflicts between the plans. The node with the lowest
+ * sum of plan lengths is checked by simulating all plans together. At the first conflict it gets two children, each
+ * forbidding one of the two agents to have an object in the contested cell at that time step, and replanning that
+ * agent. All open nodes of the lowest cost are expanded together, and the low-level searches of their children, like
+ * those of the root, run in parallel.
+ *
+ * The search gives up after a number of high-level nodes, so the caller can fall back to another planner.
+ */
+public class CBS {
+    // Expansions allowed per low-level search
+    private static final long MAX_EXPANDED = 1 << 20;
+
+    private final MAState initialState;
+    private final int maxNodes;
+    // Initial state of each agent's own problem, indexed by agent id; null for agents not in the level
+    private final MAState[] agentStates;
+    // Cells of the boxes no agent can move, which are in every agent's problem but belong to none of them
+    private final boolean[] fixedBoxes;
+    private int nodes;
+    private long startTime;
+
+    private static final class Node {
+        // Cells each agent must keep its objects out of, indexed by agent id and time step
+        final int[][][] forbidden;
+        final List<List<MAState>> plans;
+        final int cost;
+        final int numConstraints;
+
+        Node(int[][][] forbidden, List<List<MAState>> plans, int numConstraints) {
+            this.forbidden = forbidden;
+            this.plans = plans;
+            this.numConstraints = numConstraints;
+            int cost = 0;
+            for (List<MAState> plan : plans)
+                if (plan != null)
+                    cost += plan.size() - 1;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * Agent a must not have an object in cell at time step timeA, or agent b at timeB.
+     */
+    private static final class Conflict {
+        final int cell, agentA, timeA, agentB, timeB;
+
+        Conflict(int cell, int agentA, int timeA, int agentB, int timeB) {
+            this.cell = cell;
+            this.agentA = agentA;
+            this.timeA = timeA;
+            this.agentB = agentB;
+            this.timeB = timeB;
+        }
+    }
+
+    public CBS(MAState initialState, int maxNodes) {
+        this.initialState = initialState;
+        this.maxNodes = maxNodes;
+
+        Level level = initialState.level;
+        DistanceTable distances = level.getDistances();
+        int boxCount = initialState.getBoxCount();
+
+        // Owner of every box, -1 for boxes no agent can move
+        int[] boxOwners = new int[boxCount];
+        for (int i = 0; i < boxCount; i++) {
+            int boxColor = level.getColor(initialState.getBoxType(i));
+            int owner = -1, ownerDist = Integer.MAX_VALUE;
+            for (int agentId = 0; agentId < level.numAgents; agentId++) {
+                int agentCell = initialState.getAgentCell(agentId);
+                if (agentCell == -1 || level.getAgentColor(agentId) != boxColor)
+                    continue;
+
+                int dist = distances.distance(agentCell, initialState.getBoxCell(i));
+                if (dist != DistanceTable.UNREACHABLE && dist < ownerDist) {
+                    owner = agentId;
+                    ownerDist = dist;
+                }
+            }
+            boxOwners[i] = owner;
+        }
+
+        this.fixedBoxes = new boolean[level.getCellCount()];
+        for (int i = 0; i < boxCount; i++)
+            if (boxOwners[i] == -1)
+                this.fixedBoxes[initialState.getBoxCell(i)] = true;
+
+        char[][] goals = new char[level.numAgents][level.width * level.height];
+        boolean[] claimed = new boolean[boxCount];
+        for (int goalCell : level.getGoalCells()) {
+            char goal = level.goalAt(goalCell);
+            Position p = level.positionOf(goalCell);
+            int index = p.getRow() * level.width + p.getCol();
+
+            if (goal >= '0' && goal <= '9') {
+                goals[goal - '0'][index] = goal;
+                continue;
+            }
+
+            int nearest = -1, nearestDist = Integer.MAX_VALUE;
+            for (int i = 0; i < boxCount; i++) {
+                if (claimed[i] || boxOwners[i] == -1 || initialState.getBoxType(i) != goal)
+                    continue;
+
+                int dist = distances.distance(goalCell, initialState.getBoxCell(i));
+                if (dist != DistanceTable.UNREACHABLE && dist < nearestDist) {
+                    nearest = i;
+                    nearestDist = dist;
+                }
+            }
+            if (nearest != -1) {
+                claimed[nearest] = true;
+                goals[boxOwners[nearest]][index] = goal;
+            }
+        }
+
+        boolean[] walls = new boolean[level.width * level.height];
+        for (int row = 0; row < level.height; row++)
+            for (int col = 0; col < level.width; col++)
+                walls[row * level.width + col] = level.isWall(row, col);
+
+        this.agentStates = new MAState[level.numAgents];
+        for (int agentId = 0; agentId < level.numAgents; agentId++) {
+            int agentCell = initialState.getAgentCell(agentId);
+            if (agentCell == -1)
+                continue;
+
+            Map<Position, Character> agents = new TreeMap<>();
+            agents.put(level.positionOf(agentCell), (char) ('0' + agentId));
+            // Boxes no agent can move are obstacles for everyone
+            Map<Position, Character> boxes = new TreeMap<>();
+            for (int i = 0; i < boxCount; i++)
+                if (boxOwners[i] == agentId || boxOwners[i] == -1)
+                    boxes.put(level.positionOf(initialState.getBoxCell(i)), initialState.getBoxType(i));
+
+            this.agentStates[agentId] = new MAState(level.withLayout(walls, goals[agentId]), agents, boxes);
+        }
+    }
+
+    /**
+     * Returns a conflict-free joint plan, starting with the initial state, or null if none was found within the node
+     * budget.
+     */
+    public List<MAState> search() throws InterruptedException, ExecutionException {
+        System.err.format("Search starting with %s.\n", this.toString());
+        this.startTime = System.currentTimeMillis();
+
+        int numAgents = this.initialState.level.numAgents;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(numAgents, Runtime.getRuntime().availableProcessors())));
+        try {
+            int[][][] forbidden = new int[numAgents][0][];
+            List<Future<List<MAState>>> searches = new ArrayList<>();
+            for (int agentId = 0; agentId < numAgents; agentId++) {
+                int id = agentId;
+                searches.add(this.agentStates[agentId] == null ? null : executor.submit(() -> this.plan(id, forbidden[id])));
+            }
+
+            List<List<MAState>> plans = new ArrayList<>();
+            for (int agentId = 0; agentId < numAgents; agentId++) {
+                List<MAState> plan = searches.get(agentId) == null ? null : searches.get(agentId).get();
+                if (plan == null && this.agentStates[agentId] != null)
+                    return this.fail();
+                plans.add(plan);
+            }
+
+            // Cheapest first, then the node with the fewest constraints
+            PriorityQueue<Node> open = new PriorityQueue<>(
+                Comparator.comparingInt((Node n) -> n.cost).thenComparingInt(n -> n.numConstraints));
+            open.add(new Node(forbidden, plans, 0));
+
+            while (!open.isEmpty() && this.nodes < this.maxNodes) {
+                // The open nodes of the lowest cost form one level of the search, whose children are replanned together
+                List<Node> level = new ArrayList<>();
+                int cost = open.peek().cost;
+                while (!open.isEmpty() && open.peek().cost == cost && this.nodes < this.maxNodes) {
+                    level.add(open.poll());
+                    this.nodes++;
+                }
+
+                List<Conflict> conflicts = new ArrayList<>();
+                for (Node node : level) {
+                    Conflict conflict = this.findConflict(node.plans);
+                    if (conflict == null) {
+                        List<MAState> plan = this.jointPlan(node.plans);
+                        System.err.println(this.searchStatus());
+                        return plan == null ? this.fail() : plan;
+                    }
+                    conflicts.add(conflict);
+                }
+
+                List<Future<Node>> children = new ArrayList<>();
+                for (int i = 0; i < level.size(); i++) {
+                    Node node = level.get(i);
+                    Conflict conflict = conflicts.get(i);
+                    children.add(executor.submit(() -> this.child(node, conflict.agentA, conflict.cell, conflict.timeA)));
+                    children.add(executor.submit(() -> this.child(node, conflict.agentB, conflict.cell, conflict.timeB)));
+                }
+                for (Future<Node> child : children)
+                    if (child.get() != null)
+                        open.add(child.get());
+            }
+            return this.fail();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<MAState> fail() {
+        System.err.println(this.searchStatus());
+        System.err.println("CBS found no plan");
+        return null;
+    }
+
+    private List<MAState> plan(int agentId, int[][] forbidden) {
+        MAState state = this.agentStates[agentId];
+        Heuristic heuristic = new Heuristic.AStar(state, state.level.getAgentColor(agentId));
+        return Agent.constrainedSearch(state, heuristic, forbidden, MAX_EXPANDED);
+    }
+
+    /**
+     * Returns the node with the constraint added for the agent and its plan redone, or null if it has no plan.
+     */
+    private Node child(Node node, int agentId, int cell, int time) {
+        int[][] agentForbidden = node.forbidden[agentId];
+        agentForbidden = Arrays.copyOf(agentForbidden, Math.max(agentForbidden.length, time + 1));
+        int[] cells = agentForbidden[time] == null ? new int[0] : agentForbidden[time];
+        cells = Arrays.copyOf(cells, cells.length + 1);
+        cells[cells.length - 1] = cell;
+        agentForbidden[time] = cells;
+
+        List<MAState> plan = this.plan(agentId, agentForbidden);
+        if (plan == null)
+            return null;
+
+        int[][][] forbidden = node.forbidden.clone();
+        forbidden[agentId] = agentForbidden;
+        List<List<MAState>> plans = new ArrayList<>(node.plans);
+        plans.set(agentId, plan);
+        return new Node(forbidden, plans, node.numConstraints + 1);
+    }
+
+    /**
+     * Simulates the plans together and returns the first conflict, or null if there is none. Two agents conflict if
+     * they have objects in the same cell at the same time, or if one moves an object into a cell that the other
+     * occupied at the start of the joint action.
+     */
+    private Conflict findConflict(List<List<MAState>> plans) {
+        int numCells = this.initialState.level.getCellCount();
+        int length = 0;
+        for (List<MAState> plan : plans)
+            if (plan != null)
+                length = Math.max(length, plan.size() - 1);
+
+        int[] before = this.occupancy(plans, 0, numCells);
+        for (int t = 1; t <= length; t++) {
+            int[] after = new int[numCells];
+            Arrays.fill(after, -1);
+
+            for (int agentId = 0; agentId < plans.size(); agentId++) {
+                if (plans.get(agentId) == null)
+                    continue;
+
+                for (int cell : this.objectCells(plans.get(agentId), agentId, t)) {
+                    if (after[cell] != -1)
+                        return new Conflict(cell, after[cell], t, agentId, t);
+                    after[cell] = agentId;
+
+                    if (before[cell] != -1 && before[cell] != agentId)
+                        return new Conflict(cell, agentId, t, before[cell], t - 1);
+                }
+            }
+            before = after;
+        }
+        return null;
+    }
+
+    private int[] occupancy(List<List<MAState>> plans, int t, int numCells) {
+        int[] occupancy = new int[numCells];
+        Arrays.fill(occupancy, -1);
+        for (int agentId = 0; agentId < plans.size(); agentId++)
+            if (plans.get(agentId) != null)
+                for (int cell : this.objectCells(plans.get(agentId), agentId, t))
+                    occupancy[cell] = agentId;
+        return occupancy;
+    }
+
+    /**
+     * Cells of the agent and the boxes it owns at time step t of its plan. Agents stay put after their plan ends.
+     */
+    private int[] objectCells(List<MAState> plan, int agentId, int t) {
+        MAState state = plan.get(Math.min(t, plan.size() - 1));
+        int agentColor = state.level.getAgentColor(agentId);
+
+        int[] cells = new int[1 + state.getBoxCount()];
+        int numCells = 0;
+        cells[numCells++] = state.getAgentCell(agentId);
+        for (int i = 0; i < state.getBoxCount(); i++)
+            if (state.level.getColor(state.getBoxType(i)) == agentColor && !this.fixedBoxes[state.getBoxCell(i)])
+                cells[numCells++] = state.getBoxCell(i);
+        return Arrays.copyOf(cells, numCells);
+    }
+
+    /**
+     * Combines the agents' plans into joint actions applied to the initial state. Returns null if the result is not
+     * applicable or does not solve the level.
+     */
+    private List<MAState> jointPlan(List<List<MAState>> plans) {
+        int numAgents = this.initialState.level.numAgents;
+        int length = 0;
+        for (List<MAState> plan : plans)
+            if (plan != null)
+                length = Math.max(length, plan.size() - 1);
+
+        List<MAState> jointPlan = new ArrayList<>();
+        MAState state = this.initialState;
+        jointPlan.add(state);
+        for (int t = 1; t <= length; t++) {
+            byte[] actions = new byte[numAgents];
+            for (int agentId = 0; agentId < numAgents; agentId++) {
+                List<MAState> plan = plans.get(agentId);
+                actions[agentId] = plan == null || t >= plan.size() ? Command.NOOP.id : plan.get(t).actions[agentId];
+            }
+            if (!state.isApplicable(actions))
+                return null;
+
+            state = new MAState(state, actions);
+            jointPlan.add(state);
+        }
+        return state.isGoalState() ? jointPlan : null;
+    }
+
+    public String searchStatus() {
+        float time = (System.currentTimeMillis() - this.startTime) / 1000f;
+        return String.format("#Nodes: %,6d, Time: %3.2f s", this.nodes, time);
+    }
+
+    @Override
+    public String toString() {
+        return "conflict-based search";
+    }
+}
@@ -0,0 +1,183 @@
+package searchclient.agent;
+
+import searchclient.MAState;
+import searchclient.util.LongHashSet;
+
+import java.util.Arrays;
+
+/**
+ * The set of explored states of a Strategy. Neither implementation keeps the states themselves alive.
+ */
+public interface ClosedSet {
+
+    void add(MAState n);
+
+    boolean contains(MAState n);
+
+    /**
+     * Returns false if no state with the given key has been added. If the set is exact a true answer has to be
+     * confirmed with contains.
+     */
+    boolean mayContain(long key);
+
+    boolean isExact();
+
+    int size();
+
+    /**
+     * Remembers only the 64-bit Zobrist key of each state, 8 bytes per state in a primitive table. Two different states
+     * with the same key are treated as the same state, which in practice does not happen.
+     */
+    class Fingerprint implements ClosedSet {
+        private final LongHashSet keys = new LongHashSet(1 << 16);
+
+        @Override
+        public void add(MAState n) {
+            this.keys.add(n.key());
+        }
+
+        @Override
+        public boolean contains(MAState n) {
+            return this.keys.contains(n.key());
+        }
+
+        @Override
+        public boolean mayContain(long key) {
+            return this.keys.contains(key);
+        }
+
+        @Override
+        public boolean isExact() {
+            return false;
+        }
+
+        @Override
+        public int size() {
+            return this.keys.size();
+        }
+
+        @Override
+        public String toString() {
+            return "fingerprint closed set";
+        }
+    }
+
+    /**
+     * Stores every state as a packed byte key (the cell of every agent and box and one byte per box letter) in a single
+     * arena, and compares the bytes on a key match, so duplicate detection is exact. Cells take two bytes, or three in
+     * levels with 65536 free cells or more.
+     */
+    class Exact implements ClosedSet {
+        private int keyLength = -1;
+        private int cellBytes;
+        private byte[] arena = new byte[0];
+        private byte[] scratch;
+        // Zobrist key of each entry, checked before the bytes are compared
+        private long[] entryKeys = new long[1 << 10];
+        // Open addressing table of entry index + 1, 0 for empty slots
+        private int[] slots = new int[1 << 11];
+        private int size;
+
+        @Override
+        public void add(MAState n) {
+            this.pack(n);
+            if (this.find(n.key(), true) != -1)
+                return;
+
+            if (this.size == this.entryKeys.length)
+                this.entryKeys = Arrays.copyOf(this.entryKeys, 2 * this.size);
+            if ((this.size + 1) * this.keyLength > this.arena.length)
+                this.arena = Arrays.copyOf(this.arena, Math.max(2 * this.arena.length, 1024 * this.keyLength));
+
+            System.arraycopy(this.scratch, 0, this.arena, this.size * this.keyLength, this.keyLength);
+            this.entryKeys[this.size] = n.key();
+            this.size++;
+            this.insert(this.slots, this.size - 1);
+
+            if (2 * this.size > this.slots.length) {
+                this.slots = new int[2 * this.slots.length];
+                for (int entry = 0; entry < this.size; entry++)
+                    this.insert(this.slots, entry);
+            }
+        }
+
+        @Override
+        public boolean contains(MAState n) {
+            this.pack(n);
+            return this.find(n.key(), true) != -1;
+        }
+
+        @Override
+        public boolean mayContain(long key) {
+            return this.find(key, false) != -1;
+        }
+
+        @Override
+        public boolean isExact() {
+            return true;
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+
+        private int slot(long key, int[] slots) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> Long.numberOfLeadingZeros(slots.length - 1));
+        }
+
+        private void insert(int[] slots, int entry) {
+            int mask = slots.length - 1;
+            int i = this.slot(this.entryKeys[entry], slots);
+            while (slots[i] != 0)
+                i = (i + 1) & mask;
+            slots[i] = entry + 1;
+        }
+
+        /**
+         * Returns the entry with the given key (whose bytes equal the scratch key if compareBytes is set), or -1.
+         */
+        private int find(long key, boolean compareBytes) {
+            int mask = this.slots.length - 1;
+            for (int i = this.slot(key, this.slots); this.slots[i] != 0; i = (i + 1) & mask) {
+                int entry = this.slots[i] - 1;
+                if (this.entryKeys[entry] != key)
+                    continue;
+                int from = entry * this.keyLength;
+                if (!compareBytes || Arrays.equals(this.arena, from, from + this.keyLength, this.scratch, 0, this.keyLength))
+                    return entry;
+            }
+            return -1;
+        }
+
+        private void pack(MAState n) {
+            int numAgents = n.level.numAgents;
+            int numBoxes = n.getBoxCount();
+            if (this.keyLength == -1) {
+                // Agents not in the level have cell -1, stored as all ones, which must not be a valid cell
+                this.cellBytes = n.level.getCellCount() < 1 << 16 ? 2 : 3;
+                this.keyLength = this.cellBytes * numAgents + (this.cellBytes + 1) * numBoxes;
+                this.scratch = new byte[this.keyLength];
+            }
+
+            int i = 0;
+            for (int agentId = 0; agentId < numAgents; agentId++)
+                i = this.putCell(i, n.getAgentCell(agentId));
+            for (int box = 0; box < numBoxes; box++) {
+                i = this.putCell(i, n.getBoxCell(box));
+                this.scratch[i++] = (byte) n.getBoxType(box);
+            }
+        }
+
+        private int putCell(int i, int cell) {
+            for (int shift = 8 * (this.cellBytes - 1); shift >= 0; shift -= 8)
+                this.scratch[i++] = (byte) (cell >>> shift);
+            return i;
+        }
+
+        @Override
+        public String toString() {
+            return "exact closed set";
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package searchclient.agent;
+
+import searchclient.MAState;
+import searchclient.util.IndexedHeap;
+import searchclient.util.LongIntHashMap;
+import searchclient.util.Memory;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hash-distributed A* for single-agent levels. Every state is owned by one worker, chosen from its Zobrist key, and
+ * only the owner keeps it in its open list and its table of the lowest g seen for each key. Generated states are sent to
+ * their owners through lock-free queues, so workers never share a data structure other than those queues.
+ *
+ * A state can reach its owner along a longer path first, as the order of arrival depends on the other workers, so an
+ * explored state is reopened when a copy with a lower g arrives. The search ends when no state is open or in transit
+ * anywhere, which is tracked with a single counter of outstanding work, rather than at the first goal. Once a goal has
+ * been found, states that are behind it by f, or have the same f and a g no lower, are dropped, as A* would pop the
+ * goal before them. The plan returned is the one A* would return up to ties.
+ */
+public class HDAStar {
+    private final MAState initialState;
+    private final Heuristic heuristic;
+    private final char agent;
+    // Seeds the successor shuffle of each worker, null to keep generation order
+    private final Random tieBreak;
+    private final Worker[] workers;
+
+    // States in transit plus states in the open lists
+    private final AtomicLong work = new AtomicLong();
+    private final AtomicReference<MAState> solution = new AtomicReference<>();
+    private long startTime;
+
+    public HDAStar(MAState initialState, Heuristic heuristic, int numThreads, Random tieBreak) {
+        this.initialState = initialState;
+        this.heuristic = heuristic;
+        this.agent = initialState.agents().values().iterator().next();
+        this.tieBreak = tieBreak;
+        this.workers = new Worker[numThreads];
+        for (int i = 0; i < numThreads; i++)
+            this.workers[i] = new Worker();
+    }
+
+    public ArrayList<MAState> search() {
+        System.err.format("Search starting with %s on %d threads.\n", this.toString(), this.workers.length);
+        this.startTime = System.currentTimeMillis();
+
+        this.work.set(1);
+        this.workers[this.owner(this.initialState.key())].inbox.add(this.initialState);
+
+        Thread[] threads = new Thread[this.workers.length];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(this.workers[i], "hda-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        System.err.println(String.join("\t", this.searchStatus(), Memory.stringRep()));
+
+        MAState goal = this.solution.get();
+        return goal == null ? null : goal.extractPlanWithInitial();
+    }
+
+    public long countExplored() {
+        long explored = 0;
+        for (Worker worker : this.workers)
+            explored += worker.expanded;
+        return explored;
+    }
+
+    public float timeSpent() {
+        return (System.currentTimeMillis() - this.startTime) / 1000f;
+    }
+
+    public String searchStatus() {
+        return String.format("#Explored: %,6d, Threads: %d, Time: %3.2f s (%,.2f/s)",
+                this.countExplored(),
+                this.workers.length,
+                this.timeSpent(),
+                this.countExplored() / this.timeSpent());
+    }
+
+    private int owner(long key) {
+        return (int) (((key * 0x9E3779B97F4A7C15L) >>> 33) % this.workers.length);
+    }
+
+    /**
+     * Returns true if the state cannot lead to a better goal than the best found, by f and then by g.
+     */
+    private boolean isPruned(MAState n) {
+        MAState goal = this.solution.get();
+        return goal != null && this.compareByFThenG(n, goal) >= 0;
+    }
+
+    /**
+     * Keeps the goal with the lowest f, and of those the lowest g, which is the one sequential A* would pop first.
+     */
+    private void offerSolution(MAState goal) {
+        MAState current;
+        do {
+            current = this.solution.get();
+            if (current != null && this.compareByFThenG(current, goal) <= 0)
+                return;
+        } while (!this.solution.compareAndSet(current, goal));
+    }
+
+    private int compareByFThenG(MAState n1, MAState n2) {
+        int byF = Integer.compare(this.heuristic.f(n1), this.heuristic.f(n2));
+        return byF != 0 ? byF : Integer.compare(n1.g(), n2.g());
+    }
+
+    @Override
+    public String toString() {
+        return "HDA* using " + this.heuristic.toString();
+    }
+
+    private class Worker implements Runnable {
+        private final ConcurrentLinkedQueue<MAState> inbox = new ConcurrentLinkedQueue<>();
+        private final IndexedHeap<MAState> open = new IndexedHeap<>(HDAStar.this.heuristic);
+        // Lowest g of every state received, open or explored
+        private final LongIntHashMap bestG = new LongIntHashMap(1 << 16);
+        // Expansions, including those of reopened states; read once the workers have ended
+        private long expanded;
+        // Shuffles successors like the sequential strategies do, null to keep generation order
+        private final Random tieBreak = HDAStar.this.tieBreak == null ? null : new Random(HDAStar.this.tieBreak.nextLong());
+
+        @Override
+        public void run() {
+            byte[] noOps = new byte[HDAStar.this.initialState.level.numAgents];
+
+            while (true) {
+                MAState received;
+                while ((received = this.inbox.poll()) != null)
+                    this.receive(received);
+
+                MAState leafState = this.open.poll();
+                if (leafState == null) {
+                    if (HDAStar.this.work.get() == 0)
+                        return;
+                    Thread.yield();
+                    continue;
+                }
+
+                this.expand(leafState, noOps);
+                HDAStar.this.work.decrementAndGet();
+            }
+        }
+
+        /**
+         * Adds a state owned by this worker to the open list, unless it has been received before with a g no higher.
+         * An explored state is reopened. Accounts for the state in the work counter if it is dropped or replaces an open
+         * copy.
+         */
+        private void receive(MAState n) {
+            long key = n.key();
+            int best = this.bestG.get(key);
+            if (HDAStar.this.isPruned(n) || (best != -1 && best <= n.g())) {
+                HDAStar.this.work.decrementAndGet();
+                return;
+            }
+            this.bestG.put(key, n.g());
+
+            MAState existing = this.open.get(key);
+            if (existing == null) {
+                this.open.add(key, n);
+            } else {
+                this.open.replace(key, n);
+                HDAStar.this.work.decrementAndGet();
+            }
+        }
+
+        private void expand(MAState leafState, byte[] noOps) {
+            // The bound may have dropped since the state was received
+            if (HDAStar.this.isPruned(leafState))
+                return;
+
+            this.expanded++;
+            if (leafState.isGoalState()) {
+                HDAStar.this.offerSolution(leafState);
+                return;
+            }
+
+            MAState nextState = new MAState(leafState, noOps);
+            for (MAState.Successor successor : leafState.getSuccessors(HDAStar.this.agent, nextState, this.tieBreak, true)) {
+                Worker owner = HDAStar.this.workers[HDAStar.this.owner(successor.key)];
+                if (owner == this) {
+                    int best = this.bestG.get(successor.key);
+                    if (best != -1 && best <= successor.g())
+                        continue;
+                }
+
+                HDAStar.this.work.incrementAndGet();
+                if (owner == this)
+                    this.receive(successor.toState());
+                else
+                    owner.inbox.add(successor.toState());
+            }
+        }
+    }
+}
@@ -1,124 +1,301 @@
 package searchclient.agent;
 
-import searchclient.Command;
+import searchclient.DistanceTable;
+import searchclient.Level;
 import searchclient.MAState;
-import searchclient.Position;
+import searchclient.PairDatabase;
+import searchclient.util.Hungarian;
 
-import java.util.*;
-import java.util.stream.Collectors;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
 
 public abstract class Heuristic implements Comparator<MAState> {
-    private final List<List<Map<Character, Integer>>> distToGoal;
-    private final HashSet<Character> chars = new HashSet<>();
-    private final String color;
+    // Set -Dheuristic.printDistances=true to dump the goal distance fields to stderr
+    private static final boolean PRINT_DISTANCES = Boolean.getBoolean("heuristic.printDistances");
 
-    public Heuristic(MAState initialState, String color) {
+    // Distance from each cell to the nearest goal, indexed by goal character and cell id; null for characters without goals
+    private final int[][] distToGoal = new int[128][];
+    protected final DistanceTable distances;
+    private final int color;
+    private int epoch;
+
+    public Heuristic(MAState initialState, int color) {
         // Here's a chance to pre-process the static parts of the level.
 
         this.color = color;
 
-        // Initialise distance map
-        this.distToGoal = new ArrayList<>(initialState.height);
-        for (int i = 0; i < initialState.height; i++) {
-            ArrayList<Map<Character, Integer>> row = new ArrayList<>(initialState.width);
+        // The distance fields are cached on the level, so later maSolve iterations only look them up
+        Level level = initialState.level;
+        for (int goalCell : level.getGoalCells()) {
+            char g = level.goalAt(goalCell);
+            this.distToGoal[g] = level.getGoalDistances(g);
+        }
+        this.distances = level.getDistances();
+
+        if (PRINT_DISTANCES) {
+            for (char c = 0; c < this.distToGoal.length; c++) {
+                if (this.distToGoal[c] == null)
+                    continue;
+
+                System.err.println(c);
+                for (int row = 0; row < level.height; row++) {
+                    StringBuilder line = new StringBuilder();
+                    for (int col = 0; col < level.width; col++) {
+                        int cell = level.cellAt(row, col);
+                        line.append(String.format("%3d ", cell == -1 ? 0 : Math.max(this.distToGoal[c][cell], 0)));
+                    }
+                    System.err.println(line);
+                }
+                System.err.println();
+            }
+        }
+    }
+
+    /**
+     * Returns h, computing it only the first time this heuristic sees the state.
+     */
+    public int h(MAState n) {
+        return this.evaluate(n).h;
+    }
+
+    public int f(MAState n) {
+        return this.evaluate(n).f;
+    }
 
-            for (int j = 0; j < initialState.width; j++)
-                row.add(new HashMap<>());
-            this.distToGoal.add(row);
+    private MAState.Evaluation evaluate(MAState n) {
+        MAState.Evaluation evaluation = n.getEvaluation();
+        if (evaluation == null || evaluation.evaluator != this) {
+            Detail detail = this.computeDetail(n);
+            int h = this.computeH(n, detail);
+            evaluation = new MAState.Evaluation(this, this.epoch, h, this.f(n.g(), h), detail);
+            n.setEvaluation(evaluation);
+        } else if (evaluation.epoch != this.epoch) {
+            evaluation = new MAState.Evaluation(this, this.epoch, evaluation.h, this.f(n.g(), evaluation.h), evaluation.detail);
+            n.setEvaluation(evaluation);
         }
+        return evaluation;
+    }
 
-        // Update shortest distances from each goal in turn using BFS
-        for (Map.Entry<Position, Character> goal : initialState.goals.entrySet()) {
-            Position pos = goal.getKey();
-            char g = goal.getValue();
-            this.chars.add(g);
+    /**
+     * Marks the cached values of f as stale, for subclasses whose f(g, h) has changed. Cached values of h are kept.
+     */
+    protected void fChanged() {
+        this.epoch++;
+    }
 
-            ArrayDeque<Position> frontier = new ArrayDeque<>(Collections.singletonList(pos));
-            ArrayDeque<Integer> dists = new ArrayDeque<>(Collections.singletonList(0));
+    /**
+     * Parts of h kept in the evaluation of a state, so that the evaluation of a child can be derived from its parent's
+     * by only looking at the agents and boxes its joint action moved.
+     */
+    protected static class Detail {
+        // Sums of the goal distances of the agents and of the boxes of this colour
+        final int agentGoalSum, boxGoalSum;
+        // Per agent id: distance to the nearest box of this colour that has goals, and the cell of that box. MAX_VALUE
+        // and -1 for agents of other colours or if no such box can be reached. Shared with the parent if unchanged.
+        final int[] nearestDist, nearestBox;
+
+        Detail(int agentGoalSum, int boxGoalSum, int[] nearestDist, int[] nearestBox) {
+            this.agentGoalSum = agentGoalSum;
+            this.boxGoalSum = boxGoalSum;
+            this.nearestDist = nearestDist;
+            this.nearestBox = nearestBox;
+        }
+
+        protected Detail(Detail other) {
+            this(other.agentGoalSum, other.boxGoalSum, other.nearestDist, other.nearestBox);
+        }
+    }
 
-            while (!frontier.isEmpty()) {
-                Position p = frontier.pop();
-                int dist = dists.pop();
+    /**
+     * Computes the detail of a state, from its parent's if this heuristic has evaluated the parent. Subclasses that
+     * keep more data extend Detail.
+     */
+    protected Detail computeDetail(MAState n) {
+        Detail parent = this.parentDetail(n);
+        return parent == null ? this.fullDetail(n) : this.childDetail(n, parent);
+    }
 
-                int row = p.getRow(), col = p.getCol();
+    /**
+     * Returns the detail of the parent of n if this heuristic has evaluated the parent, or null.
+     */
+    protected Detail parentDetail(MAState n) {
+        return n.parent == null ? null : this.detailOf(n.parent);
+    }
 
-                if (p.within(0, 0, initialState.height - 1, initialState.width - 1) &&
-                        this.distToGoal.get(row).get(col).getOrDefault(g, Integer.MAX_VALUE) > dist && !initialState.walls.contains(p)) {
+    /**
+     * Returns the detail of n if this heuristic has evaluated it, or null.
+     */
+    protected Detail detailOf(MAState n) {
+        MAState.Evaluation evaluation = n.getEvaluation();
+        return evaluation == null || evaluation.evaluator != this ? null : (Detail) evaluation.detail;
+    }
 
-                    this.distToGoal.get(row).get(col).put(g, dist);
+    private Detail fullDetail(MAState n) {
+        Level level = n.level;
+        int agentGoalSum = 0, boxGoalSum = 0;
+        int[] nearestDist = new int[level.numAgents];
+        int[] nearestBox = new int[level.numAgents];
+        Arrays.fill(nearestDist, Integer.MAX_VALUE);
+        Arrays.fill(nearestBox, -1);
+
+        for (int agentId = 0; agentId < level.numAgents; agentId++) {
+            int agentCell = n.getAgentCell(agentId);
+            char a = (char) ('0' + agentId);
+            if (agentCell == -1 || this.color != level.getColor(a))
+                continue;
 
-                    for (Command.Dir dir : Command.Dir.values()) {
-                        frontier.add(p.add(dir));
-                        dists.add(dist + 1);
-                    }
-                }
-            }
+            agentGoalSum += this.goalDistance(a, agentCell);
+            this.findNearestBox(n, agentId, agentCell, nearestDist, nearestBox);
         }
 
-        // Print the distance fields
-        for (Character c : this.chars) {
-            System.err.println(c);
-            System.err.println(this.distToGoal.stream().map(
-                    row -> row.stream().map(
-                            x -> String.format("%3d", x.getOrDefault(c, 0))
-                    ).collect(Collectors.joining(" "))
-            ).collect(Collectors.joining("\n")));
-            System.err.println();
+        for (int i = 0; i < n.getBoxCount(); i++) {
+            char b = n.getBoxType(i);
+            if (this.color == level.getColor(b))
+                boxGoalSum += this.goalDistance(b, n.getBoxCell(i));
         }
-    }
-
-    public int h(MAState n) {
-        int totalDistance = 0;
 
-        for (Map.Entry<Position, Character> entry : n.agents.entrySet()) {
-            Position agentPos = entry.getKey();
-            Character a = entry.getValue();
+        return new Detail(agentGoalSum, boxGoalSum, nearestDist, nearestBox);
+    }
 
-	        if (this.color.equals(n.color.get(a))) {
-                totalDistance += this.distToGoal.get(agentPos.getRow()).get(agentPos.getCol()).getOrDefault(a, 0);
-            }
+    /**
+     * Derives the detail of n from its parent's. The sums change by the goal distances of the moved objects. The nearest
+     * box of an agent is only searched for again if the boxes that moved and the previous nearest box do not settle it:
+     * an agent moves at most one cell, so the boxes that stayed put are at most one cell closer than before.
+     */
+    private Detail childDetail(MAState n, Detail parentDetail) {
+        Level level = n.level;
+        MAState parent = n.parent;
+        int agentGoalSum = parentDetail.agentGoalSum, boxGoalSum = parentDetail.boxGoalSum;
+        boolean nearestChanged = false;
+
+        int[] boxMoves = n.getBoxMoves();
+        for (int i = 0; i < boxMoves.length; i += 2) {
+            char b = parent.getBoxTypeAt(boxMoves[i]);
+            if (this.color != level.getColor(b))
+                continue;
 
+            boxGoalSum += this.goalDistance(b, boxMoves[i + 1]) - this.goalDistance(b, boxMoves[i]);
+            nearestChanged |= this.distToGoal[b] != null;
         }
 
-        for (Map.Entry<Position, Character> entry : n.boxes.entrySet()) {
-            Position boxPos = entry.getKey();
-            Character b = entry.getValue();
-            if (this.color.equals(n.color.get(b))) {
-                totalDistance += this.distToGoal.get(boxPos.getRow()).get(boxPos.getCol()).getOrDefault(b, 0);
-            }
+        int[] agentMoves = n.getAgentMoves();
+        for (int i = 0; i < agentMoves.length; i += 2) {
+            char a = (char) ('0' + agentMoves[i]);
+            if (this.color != level.getColor(a))
+                continue;
 
+            agentGoalSum += this.goalDistance(a, agentMoves[i + 1]) - this.goalDistance(a, parent.getAgentCell(agentMoves[i]));
+            nearestChanged = true;
         }
 
-        int minAgentDist = Integer.MAX_VALUE;
-        for (Map.Entry<Position, Character> agent : n.agents.entrySet()) {
-            Position agentPos = agent.getKey();
-            Character agentType = agent.getValue();
+        if (!nearestChanged)
+            return new Detail(agentGoalSum, boxGoalSum, parentDetail.nearestDist, parentDetail.nearestBox);
 
-            if (!this.color.equals(n.color.get(agentType)))
+        int[] nearestDist = parentDetail.nearestDist.clone();
+        int[] nearestBox = parentDetail.nearestBox.clone();
+        for (int agentId = 0; agentId < level.numAgents; agentId++) {
+            int agentCell = n.getAgentCell(agentId);
+            if (agentCell == -1 || this.color != level.getColor((char) ('0' + agentId)))
                 continue;
 
-            for (Map.Entry<Position, Character> box : n.boxes.entrySet()) {
-                Position boxPos = box.getKey();
-                Character boxType = box.getValue();
+            int best = Integer.MAX_VALUE, bestBox = -1;
+            if (nearestBox[agentId] != -1) {
+                bestBox = movedTo(boxMoves, nearestBox[agentId]);
+                best = this.distances.distance(agentCell, bestBox);
+                if (best == DistanceTable.UNREACHABLE) {
+                    best = Integer.MAX_VALUE;
+                    bestBox = -1;
+                }
+            }
+            for (int i = 0; i < boxMoves.length; i += 2) {
+                char b = parent.getBoxTypeAt(boxMoves[i]);
+                if (this.color != level.getColor(b) || this.distToGoal[b] == null)
+                    continue;
+
+                int dist = this.distances.distance(agentCell, boxMoves[i + 1]);
+                if (dist != DistanceTable.UNREACHABLE && dist < best) {
+                    best = dist;
+                    bestBox = boxMoves[i + 1];
+                }
+            }
+
+            // Lower bound on the distance to the boxes that did not move
+            int bound = nearestDist[agentId];
+            if (bound != Integer.MAX_VALUE && agentCell != parent.getAgentCell(agentId))
+                bound--;
+
+            if (best <= bound || best == 1) {
+                nearestDist[agentId] = best;
+                nearestBox[agentId] = bestBox;
+            } else {
+                nearestDist[agentId] = Integer.MAX_VALUE;
+                nearestBox[agentId] = -1;
+                this.findNearestBox(n, agentId, agentCell, nearestDist, nearestBox);
+            }
+        }
 
-	            if (!this.color.equals(n.color.get(boxType)))
-		            continue;
+        return new Detail(agentGoalSum, boxGoalSum, nearestDist, nearestBox);
+    }
 
-	            if (this.chars.contains(boxType) && n.color.get(agentType).equals(n.color.get(boxType))) {
-                    int dist = Position.distance(agentPos, boxPos);
+    /**
+     * Returns the cell the box in the given cell was moved to, or the cell itself if it did not move.
+     */
+    private static int movedTo(int[] boxMoves, int cell) {
+        for (int i = 0; i < boxMoves.length; i += 2)
+            if (boxMoves[i] == cell)
+                return boxMoves[i + 1];
+        return cell;
+    }
 
-                    if (dist < minAgentDist)
-                        minAgentDist = dist;
-                }
+    private void findNearestBox(MAState n, int agentId, int agentCell, int[] nearestDist, int[] nearestBox) {
+        for (int i = 0; i < n.getBoxCount(); i++) {
+            char b = n.getBoxType(i);
+            if (this.color != n.level.getColor(b) || this.distToGoal[b] == null)
+                continue;
+
+            int dist = this.distances.distance(agentCell, n.getBoxCell(i));
+            if (dist != DistanceTable.UNREACHABLE && dist < nearestDist[agentId]) {
+                nearestDist[agentId] = dist;
+                nearestBox[agentId] = n.getBoxCell(i);
             }
         }
+    }
+
+    protected int computeH(MAState n, Detail detail) {
+        int totalDistance = detail.agentGoalSum + this.boxDistance(n, detail);
+
+        int minAgentDist = Integer.MAX_VALUE;
+        for (int dist : detail.nearestDist)
+            minAgentDist = Math.min(minAgentDist, dist);
 
-        totalDistance += minAgentDist - 1;
+        // No box left for the agents to go to
+        if (minAgentDist != Integer.MAX_VALUE)
+            totalDistance += minAgentDist - 1;
 
         return totalDistance;
     }
 
-    public abstract int f(MAState n);
+    /**
+     * Estimated number of box moves left: the sum over the boxes of this colour of the distance to the nearest goal of
+     * their letter.
+     */
+    protected int boxDistance(MAState n, Detail detail) {
+        return detail.boxGoalSum;
+    }
+
+    /**
+     * Distance from the cell to the nearest goal of the given character, or 0 if there is none it can reach.
+     */
+    protected int goalDistance(char c, int cell) {
+        int[] dists = this.distToGoal[c];
+        return dists == null ? 0 : Math.max(dists[cell], 0);
+    }
+
+    protected abstract int f(int g, int h);
 
     @Override
     public int compare(MAState n1, MAState n2) {
@@ -126,13 +303,13 @@ public abstract class Heuristic implements Comparator<MAState> {
     }
 
     public static class AStar extends Heuristic {
-        public AStar(MAState initialState, String color) {
+        public AStar(MAState initialState, int color) {
             super(initialState,color);
         }
 
         @Override
-        public int f(MAState n) {
-            return n.g() + this.h(n);
+        protected int f(int g, int h) {
+            return g + h;
         }
 
         @Override
@@ -141,17 +318,337 @@ public abstract class Heuristic implements Comparator<MAState> {
         }
     }
 
+    /**
+     * A* with the boxes of each letter assigned to distinct goals of their letter. The box term of h is the cost of a
+     * minimum-cost assignment over true distances instead of a sum of nearest-goal distances, in which several boxes
+     * may count the same goal.
+     *
+     * The assignment of every letter is kept in the evaluation of a state. A child whose parent was evaluated only
+     * re-solves the rows of the boxes that moved, with one augmentation each.
+     */
+    public static class Assignment extends Heuristic {
+        // Goal cells per box letter (offset from 'A'), null for letters of other colours or without goals
+        private final int[][] goalCells = new int[26][];
+
+        public Assignment(MAState initialState, int color) {
+            super(initialState, color);
+
+            Level level = initialState.level;
+            for (int type = 0; type < 26; type++) {
+                int[] cells = level.getGoalCells((char) ('A' + type));
+                if (cells.length > 0 && level.getColor((char) ('A' + type)) == color)
+                    this.goalCells[type] = cells;
+            }
+        }
+
+        /**
+         * Optimal assignment of the boxes of one letter. Rows are boxes and columns goals; the matrix is padded to a
+         * square with rows or columns of cost 0, so surplus boxes or goals cost nothing.
+         */
+        private static final class Matching {
+            // Cell of the box of each row, -1 for padding rows
+            final int[] boxCells;
+            final Hungarian hungarian;
+
+            Matching(int[] boxCells, Hungarian hungarian) {
+                this.boxCells = boxCells;
+                this.hungarian = hungarian;
+            }
+        }
+
+        private static final class AssignmentDetail extends Detail {
+            // Indexed by box letter (offset from 'A'), null for letters without goals or boxes
+            final Matching[] matchings;
+
+            AssignmentDetail(Detail detail, Matching[] matchings) {
+                super(detail);
+                this.matchings = matchings;
+            }
+        }
+
+        private int[] rowCost(int type, int boxCell, int size) {
+            int[] cost = new int[size];
+            if (boxCell == -1)
+                return cost;
+
+            int[] goals = this.goalCells[type];
+            for (int col = 0; col < goals.length; col++)
+                cost[col] = Math.max(this.distances.distance(goals[col], boxCell), 0);
+            return cost;
+        }
+
+        @Override
+        protected Detail computeDetail(MAState n) {
+            AssignmentDetail parentDetail = (AssignmentDetail) this.parentDetail(n);
+            return new AssignmentDetail(super.computeDetail(n),
+                parentDetail == null ? this.matchings(n) : this.matchings(n, parentDetail.matchings));
+        }
+
+        /**
+         * Derives the matchings of n from its parent's.
+         */
+        private Matching[] matchings(MAState n, Matching[] parent) {
+            Matching[] matchings = parent.clone();
+            int[] boxMoves = n.getBoxMoves();
+            for (int i = 0; i < boxMoves.length; i += 2) {
+                for (int type = 0; type < matchings.length; type++) {
+                    Matching matching = matchings[type];
+                    int row = matching == null ? -1 : indexOf(matching.boxCells, boxMoves[i]);
+                    if (row == -1)
+                        continue;
+
+                    int[] boxCells = matching.boxCells.clone();
+                    boxCells[row] = boxMoves[i + 1];
+                    Hungarian hungarian = matching.hungarian.withRow(row, this.rowCost(type, boxMoves[i + 1], boxCells.length));
+                    matchings[type] = new Matching(boxCells, hungarian);
+                    break;
+                }
+            }
+            return matchings;
+        }
+
+        private Matching[] matchings(MAState n) {
+            Matching[] matchings = new Matching[26];
+            for (int type = 0; type < 26; type++) {
+                if (this.goalCells[type] == null)
+                    continue;
+
+                int numBoxes = 0;
+                for (int i = 0; i < n.getBoxCount(); i++)
+                    if (n.getBoxType(i) == 'A' + type)
+                        numBoxes++;
+                if (numBoxes == 0)
+                    continue;
+
+                int size = Math.max(numBoxes, this.goalCells[type].length);
+                int[] boxCells = new int[size];
+                Arrays.fill(boxCells, -1);
+                for (int i = 0, row = 0; i < n.getBoxCount(); i++)
+                    if (n.getBoxType(i) == 'A' + type)
+                        boxCells[row++] = n.getBoxCell(i);
+
+                int[][] cost = new int[size][];
+                for (int row = 0; row < size; row++)
+                    cost[row] = this.rowCost(type, boxCells[row], size);
+                matchings[type] = new Matching(boxCells, new Hungarian(cost));
+            }
+            return matchings;
+        }
+
+        private static int indexOf(int[] cells, int cell) {
+            for (int i = 0; i < cells.length; i++)
+                if (cells[i] == cell)
+                    return i;
+            return -1;
+        }
+
+        @Override
+        protected int boxDistance(MAState n, Detail detail) {
+            int totalDistance = 0;
+            for (Matching matching : ((AssignmentDetail) detail).matchings)
+                if (matching != null)
+                    totalDistance += matching.hungarian.cost();
+            return totalDistance;
+        }
+
+        @Override
+        protected int f(int g, int h) {
+            return g + h;
+        }
+
+        @Override
+        public String toString() {
+            return "A* evaluation with box assignment";
+        }
+    }
+
+    /**
+     * A* with an additive pattern database over pairs of boxes. The boxes of this colour whose letter has at least as
+     * many goals as boxes are paired greedily with their nearest unpaired box in the initial state. A pair counts the
+     * least number of box moves that bring both boxes onto goals (see PairDatabase) instead of the sum of their
+     * nearest-goal distances. The databases, one per pair of letters, are loaded or computed in parallel.
+     *
+     * Boxes of the same letter are interchangeable in a state, so the detail tracks the cell of every paired box through
+     * the box moves since the closest evaluated ancestor.
+     */
+    public static class PatternDatabase extends Heuristic {
+        // Letters and initial cells of the paired boxes: boxes 2k and 2k + 1 form pair k
+        private final char[] letters;
+        private final int[] initialCells;
+        private final PairDatabase[] databases;
+
+        public PatternDatabase(MAState initialState, int color) {
+            super(initialState, color);
+
+            Level level = initialState.level;
+            List<Integer> boxes = new ArrayList<>();
+            if (level.getCellCount() <= PairDatabase.MAX_CELLS) {
+                int[] boxCounts = new int[26];
+                for (int i = 0; i < initialState.getBoxCount(); i++)
+                    boxCounts[initialState.getBoxType(i) - 'A']++;
+
+                for (int i = 0; i < initialState.getBoxCount(); i++) {
+                    char b = initialState.getBoxType(i);
+                    int numGoals = level.getGoalCells(b).length;
+                    if (level.getColor(b) == color && numGoals > 0 && boxCounts[b - 'A'] <= numGoals)
+                        boxes.add(i);
+                }
+            }
+
+            List<Integer> pairedBoxes = new ArrayList<>();
+            boolean[] paired = new boolean[boxes.size()];
+            for (int i = 0; i < boxes.size(); i++) {
+                if (paired[i])
+                    continue;
+
+                int cell = initialState.getBoxCell(boxes.get(i));
+                int nearest = -1, nearestDist = Integer.MAX_VALUE;
+                for (int j = i + 1; j < boxes.size(); j++) {
+                    int dist = this.distances.distance(cell, initialState.getBoxCell(boxes.get(j)));
+                    if (!paired[j] && dist != DistanceTable.UNREACHABLE && dist < nearestDist) {
+                        nearest = j;
+                        nearestDist = dist;
+                    }
+                }
+                if (nearest == -1)
+                    continue;
+
+                paired[i] = paired[nearest] = true;
+                pairedBoxes.add(boxes.get(i));
+                pairedBoxes.add(boxes.get(nearest));
+            }
+
+            this.letters = new char[pairedBoxes.size()];
+            this.initialCells = new int[pairedBoxes.size()];
+            for (int slot = 0; slot < this.letters.length; slot++) {
+                this.letters[slot] = initialState.getBoxType(pairedBoxes.get(slot));
+                this.initialCells[slot] = initialState.getBoxCell(pairedBoxes.get(slot));
+            }
+            this.databases = IntStream.range(0, this.letters.length / 2).parallel()
+                .mapToObj(k -> level.getPairDatabase(this.letters[2 * k], this.letters[2 * k + 1]))
+                .toArray(PairDatabase[]::new);
+        }
+
+        private static final class PatternDetail extends Detail {
+            // Cell of each paired box, -1 if the state has no box for it
+            final int[] cells;
+
+            PatternDetail(Detail detail, int[] cells) {
+                super(detail);
+                this.cells = cells;
+            }
+        }
+
+        @Override
+        protected Detail computeDetail(MAState n) {
+            return new PatternDetail(super.computeDetail(n), this.pairedCells(n));
+        }
+
+        private int[] pairedCells(MAState n) {
+            ArrayDeque<MAState> chain = new ArrayDeque<>();
+            int[] cells = null;
+            for (MAState state = n; cells == null; state = state.parent) {
+                chain.push(state);
+                if (state.parent == null) {
+                    cells = this.assignCells(chain.pop());
+                } else {
+                    PatternDetail detail = (PatternDetail) this.detailOf(state.parent);
+                    if (detail != null)
+                        cells = detail.cells.clone();
+                }
+            }
+
+            for (MAState state : chain) {
+                int[] boxMoves = state.getBoxMoves();
+                for (int i = 0; i < boxMoves.length; i += 2)
+                    for (int slot = 0; slot < cells.length; slot++)
+                        if (cells[slot] == boxMoves[i])
+                            cells[slot] = boxMoves[i + 1];
+            }
+            return cells;
+        }
+
+        /**
+         * Gives every paired box a box of its letter in n: the box in its initial cell if there is one, so the pairs
+         * chosen by the constructor are kept, and otherwise the first unused box of the letter in cell order.
+         */
+        private int[] assignCells(MAState n) {
+            int[] cells = new int[this.letters.length];
+            boolean[] used = new boolean[n.getBoxCount()];
+            for (int slot = 0; slot < cells.length; slot++) {
+                cells[slot] = -1;
+                if (n.getBoxTypeAt(this.initialCells[slot]) == this.letters[slot]) {
+                    cells[slot] = this.initialCells[slot];
+                    for (int i = 0; i < n.getBoxCount(); i++)
+                        if (n.getBoxCell(i) == cells[slot])
+                            used[i] = true;
+                }
+            }
+
+            for (int slot = 0; slot < cells.length; slot++) {
+                if (cells[slot] != -1)
+                    continue;
+                for (int i = 0; i < n.getBoxCount(); i++) {
+                    if (!used[i] && n.getBoxType(i) == this.letters[slot]) {
+                        used[i] = true;
+                        cells[slot] = n.getBoxCell(i);
+                        break;
+                    }
+                }
+            }
+            return cells;
+        }
+
+        @Override
+        protected int boxDistance(MAState n, Detail detail) {
+            int[] cells = ((PatternDetail) detail).cells;
+            int totalDistance = detail.boxGoalSum;
+            for (int k = 0; k < this.databases.length; k++) {
+                int cellA = cells[2 * k], cellB = cells[2 * k + 1];
+                if (cellA == -1 || cellB == -1)
+                    continue;
+
+                // The nearest-goal distances are lower bounds too, and the larger one counts
+                int goalDistances = this.goalDistance(this.letters[2 * k], cellA) + this.goalDistance(this.letters[2 * k + 1], cellB);
+                totalDistance += Math.max(this.databases[k].cost(cellA, cellB), goalDistances) - goalDistances;
+            }
+            return totalDistance;
+        }
+
+        @Override
+        protected int f(int g, int h) {
+            return g + h;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("A* evaluation with %d box pairs", this.databases.length);
+        }
+    }
+
     public static class WeightedAStar extends Heuristic {
         private int W;
 
-        public WeightedAStar(MAState initialState, String color, int W) {
+        public WeightedAStar(MAState initialState, int color, int W) {
             super(initialState, color);
             this.W = W;
         }
 
+        public int getW() {
+            return this.W;
+        }
+
+        /**
+         * Changes the weight, e.g. between the iterations of an anytime search. Cached values of f are recomputed.
+         */
+        public void setW(int W) {
+            this.W = W;
+            this.fChanged();
+        }
+
         @Override
-        public int f(MAState n) {
-            return n.g() + this.W * this.h(n);
+        protected int f(int g, int h) {
+            return g + this.W * h;
         }
 
         @Override
@@ -161,13 +658,13 @@ public abstract class Heuristic implements Comparator<MAState> {
     }
 
     public static class Greedy extends Heuristic {
-        public Greedy(MAState initialState, String color) {
+        public Greedy(MAState initialState, int color) {
             super(initialState, color);
         }
 
         @Override
-        public int f(MAState n) {
-            return this.h(n);
+        protected int f(int g, int h) {
+            return h;
         }
 
         @Override
@@ -1,20 +1,39 @@
 package searchclient.agent;
 
 import searchclient.MAState;
+import searchclient.util.IndexedHeap;
+import searchclient.util.LongHashSet;
+import searchclient.util.LongIntHashMap;
 
 import java.util.ArrayDeque;
-import java.util.HashSet;
-import java.util.PriorityQueue;
-
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * States are looked up by their 64-bit Zobrist keys (MAState.key()) in the explored and frontier sets, so successors
+ * can be checked before they are built. The explored set is a fingerprint ClosedSet by default, which treats two states
+ * with the same key as one; among n states that happens with probability about n^2 / 2^65, under 10^-7 for 10^6
+ * states, and it saves storing the states. An exact set (Main option -exact) makes the explored set exact at the cost
+ * of a packed copy of every state. The frontier is keyed by the Zobrist key either way.
+ */
 public abstract class Strategy {
-    private HashSet<MAState> explored;
+    private ClosedSet explored;
+    private Random tieBreak;
     private final long startTime;
 
     public Strategy() {
-        this.explored = new HashSet<>();
+        this.explored = new ClosedSet.Fingerprint();
+        this.tieBreak = null;
         this.startTime = System.currentTimeMillis();
     }
 
+    /**
+     * Replaces the explored set; only meant to be called before the search starts.
+     */
+    public void setClosedSet(ClosedSet explored) {
+        this.explored = explored;
+    }
+
     public void addToExplored(MAState n) {
         this.explored.add(n);
     }
@@ -23,6 +42,31 @@ public abstract class Strategy {
         return this.explored.contains(n);
     }
 
+    /**
+     * Checks a successor without building it, unless the explored set is exact and has a state with the same key.
+     */
+    public boolean isExplored(MAState.Successor successor) {
+        if (!this.explored.mayContain(successor.key))
+            return false;
+        return !this.explored.isExact() || this.explored.contains(successor.toState());
+    }
+
+    public boolean inFrontier(MAState n) {
+        return this.inFrontier(n.key());
+    }
+
+    /**
+     * Random source used to shuffle successors before they are added to the frontier, or null (the default) to add them
+     * in generation order. Main sets a seeded one with the option -seed.
+     */
+    public Random getTieBreak() {
+        return this.tieBreak;
+    }
+
+    public void setTieBreak(Random tieBreak) {
+        this.tieBreak = tieBreak;
+    }
+
     public int countExplored() {
         return this.explored.size();
     }
@@ -45,7 +89,14 @@ public abstract class Strategy {
 
     public abstract void addToFrontier(MAState n);
 
-    public abstract boolean inFrontier(MAState n);
+    public abstract boolean inFrontier(long key);
+
+    /**
+     * Called for a successor whose key is already in the frontier. Strategies that can update their frontier replace
+     * the state there if the successor reaches it with a lower g.
+     */
+    public void improveFrontier(MAState.Successor successor) {
+    }
 
     public abstract int countFrontier();
 
@@ -58,25 +109,25 @@ public abstract class Strategy {
 
     public static class StrategyBFS extends Strategy {
         private ArrayDeque<MAState> frontier;
-        private HashSet<MAState> frontierSet;
+        private LongHashSet frontierSet;
 
         public StrategyBFS() {
             super();
             this.frontier = new ArrayDeque<>();
-            this.frontierSet = new HashSet<>();
+            this.frontierSet = new LongHashSet();
         }
 
         @Override
         public MAState getAndRemoveLeaf() {
             MAState n = this.frontier.pollFirst();
-            this.frontierSet.remove(n);
+            this.frontierSet.remove(n.key());
             return n;
         }
 
         @Override
         public void addToFrontier(MAState n) {
             this.frontier.addLast(n);
-            this.frontierSet.add(n);
+            this.frontierSet.add(n.key());
         }
 
         @Override
@@ -90,8 +141,8 @@ public abstract class Strategy {
         }
 
         @Override
-        public boolean inFrontier(MAState n) {
-            return this.frontierSet.contains(n);
+        public boolean inFrontier(long key) {
+            return this.frontierSet.contains(key);
         }
 
         @Override
@@ -107,25 +158,25 @@ public abstract class Strategy {
 
     public static class StrategyDFS extends Strategy {
         private ArrayDeque<MAState> frontier;
-        private HashSet<MAState> frontierSet;
+        private LongHashSet frontierSet;
 
         public StrategyDFS() {
             super();
             this.frontier = new ArrayDeque<>();
-            this.frontierSet = new HashSet<>();
+            this.frontierSet = new LongHashSet();
         }
 
         @Override
         public MAState getAndRemoveLeaf() {
             MAState n = this.frontier.pollLast();
-            this.frontierSet.remove(n);
+            this.frontierSet.remove(n.key());
             return n;
         }
 
         @Override
         public void addToFrontier(MAState n) {
             this.frontier.addLast(n);
-            this.frontierSet.add(n);
+            this.frontierSet.add(n.key());
         }
 
         @Override
@@ -139,8 +190,8 @@ public abstract class Strategy {
         }
 
         @Override
-        public boolean inFrontier(MAState n) {
-            return this.frontierSet.contains(n);
+        public boolean inFrontier(long key) {
+            return this.frontierSet.contains(key);
         }
 
         @Override
@@ -155,28 +206,31 @@ public abstract class Strategy {
     }
 
     public static class StrategyBestFirst extends Strategy {
-        private PriorityQueue<MAState> frontier;
-        private HashSet<MAState> frontierSet;
+        // Keyed by MAState.key(), so membership and decrease-key need no second set
+        private IndexedHeap<MAState> frontier;
         private Heuristic heuristic;
 
         public StrategyBestFirst(Heuristic h) {
             super();
             this.heuristic = h;
-            this.frontier = new PriorityQueue<>(this.heuristic);
-            this.frontierSet = new HashSet<>();
+            this.frontier = new IndexedHeap<>(this.heuristic);
         }
 
         @Override
         public MAState getAndRemoveLeaf() {
-            MAState n = this.frontier.poll();
-            this.frontierSet.remove(n);
-            return n;
+            return this.frontier.poll();
         }
 
         @Override
         public void addToFrontier(MAState n) {
-            this.frontier.add(n);
-            this.frontierSet.add(n);
+            this.frontier.add(n.key(), n);
+        }
+
+        @Override
+        public void improveFrontier(MAState.Successor successor) {
+            MAState n = this.frontier.get(successor.key);
+            if (n != null && successor.g() < n.g())
+                this.frontier.replace(successor.key, successor.toState());
         }
 
         @Override
@@ -190,8 +244,8 @@ public abstract class Strategy {
         }
 
         @Override
-        public boolean inFrontier(MAState n) {
-            return this.frontierSet.contains(n);
+        public boolean inFrontier(long key) {
+            return this.frontier.contains(key);
         }
 
         @Override
@@ -204,4 +258,213 @@ public abstract class Strategy {
             return "Best-first Search using " + this.heuristic.toString();
         }
     }
+
+    /**
+     * Best-first search with an open list of buckets indexed by f and then h, each a LIFO stack, so adding and removing
+     * a state is O(1) as long as f and h are small integers. A state reached again with a lower g is added once more and
+     * its old entry is skipped when it comes up. Works with any heuristic whose h and f are non-negative, e.g. the A*
+     * evaluations; selected with the Main option -bucket.
+     */
+    public static class StrategyBucket extends Strategy {
+        // buckets.get(f).get(h)
+        private ArrayList<ArrayList<ArrayDeque<MAState>>> buckets;
+        // Lowest f and, per f, lowest h that may have a non-empty bucket
+        private int minF;
+        private ArrayList<Integer> minH;
+        // Best g of each state in the frontier
+        private LongIntHashMap frontierG;
+        private Heuristic heuristic;
+
+        public StrategyBucket(Heuristic h) {
+            super();
+            this.heuristic = h;
+            this.buckets = new ArrayList<>();
+            this.minF = 0;
+            this.minH = new ArrayList<>();
+            this.frontierG = new LongIntHashMap(1 << 10);
+        }
+
+        @Override
+        public MAState getAndRemoveLeaf() {
+            while (this.minF < this.buckets.size()) {
+                ArrayList<ArrayDeque<MAState>> row = this.buckets.get(this.minF);
+                int h = this.minH.get(this.minF);
+                while (h < row.size() && row.get(h).isEmpty())
+                    h++;
+                this.minH.set(this.minF, h);
+
+                if (h >= row.size()) {
+                    this.minF++;
+                    continue;
+                }
+
+                MAState n = row.get(h).pollLast();
+                // Skip entries superseded by a cheaper path to the same state
+                if (this.frontierG.get(n.key()) != n.g())
+                    continue;
+                this.frontierG.remove(n.key());
+                return n;
+            }
+            return null;
+        }
+
+        @Override
+        public void addToFrontier(MAState n) {
+            int f = this.heuristic.f(n), h = this.heuristic.h(n);
+            assert f >= 0 && h >= 0 : "Bucket open list needs a non-negative f and h";
+            while (this.buckets.size() <= f) {
+                this.buckets.add(new ArrayList<>());
+                this.minH.add(Integer.MAX_VALUE);
+            }
+            ArrayList<ArrayDeque<MAState>> row = this.buckets.get(f);
+            while (row.size() <= h)
+                row.add(new ArrayDeque<>());
+
+            row.get(h).addLast(n);
+            this.frontierG.put(n.key(), n.g());
+            this.minF = Math.min(this.minF, f);
+            this.minH.set(f, Math.min(this.minH.get(f), h));
+        }
+
+        @Override
+        public void improveFrontier(MAState.Successor successor) {
+            int g = this.frontierG.get(successor.key);
+            if (g != -1 && successor.g() < g)
+                this.addToFrontier(successor.toState());
+        }
+
+        @Override
+        public int countFrontier() {
+            return this.frontierG.size();
+        }
+
+        @Override
+        public boolean frontierIsEmpty() {
+            return this.frontierG.size() == 0;
+        }
+
+        @Override
+        public boolean inFrontier(long key) {
+            return this.frontierG.containsKey(key);
+        }
+
+        @Override
+        public String describeState(MAState n) {
+            return String.format("[f: %d, g: %d, h: %d]", this.heuristic.f(n), n.g(), this.heuristic.h(n));
+        }
+
+        @Override
+        public String toString() {
+            return "Bucket best-first Search using " + this.heuristic.toString();
+        }
+    }
+
+    /**
+     * IDA*: depth-first search bounded by f, restarted from the initial state with the smallest f that exceeded the bound
+     * until a goal is found. Instead of a closed set it keeps a transposition table from state key to the lowest g the
+     * state was reached with in the current iteration, capped at nodeBudget entries, so memory stays bounded at the cost
+     * of re-expanding states.
+     */
+    public static class StrategyIDA extends Strategy {
+        private final Heuristic heuristic;
+        private final int nodeBudget;
+        private final ArrayDeque<MAState> frontier;
+        private LongIntHashMap transpositions;
+        private MAState root;
+        private int threshold;
+        private int nextThreshold;
+        private int iteration;
+        private long expanded;
+
+        public StrategyIDA(Heuristic h, int nodeBudget) {
+            super();
+            this.heuristic = h;
+            this.nodeBudget = nodeBudget;
+            this.frontier = new ArrayDeque<>();
+            this.transpositions = new LongIntHashMap(1 << 10);
+        }
+
+        @Override
+        public void addToExplored(MAState n) {
+            this.expanded++;
+        }
+
+        @Override
+        public boolean isExplored(MAState n) {
+            int g = this.transpositions.get(n.key());
+            return g != -1 && g <= n.g();
+        }
+
+        @Override
+        public boolean isExplored(MAState.Successor successor) {
+            int g = this.transpositions.get(successor.key);
+            return g != -1 && g <= successor.g();
+        }
+
+        @Override
+        public int countExplored() {
+            return (int) Math.min(this.expanded, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public MAState getAndRemoveLeaf() {
+            return this.frontier.pollLast();
+        }
+
+        @Override
+        public void addToFrontier(MAState n) {
+            if (this.root == null) {
+                this.root = n;
+                this.threshold = this.heuristic.f(n);
+                this.nextThreshold = Integer.MAX_VALUE;
+            }
+
+            int f = this.heuristic.f(n);
+            if (f > this.threshold) {
+                this.nextThreshold = Math.min(this.nextThreshold, f);
+                return;
+            }
+
+            if (this.transpositions.size() < this.nodeBudget || this.transpositions.containsKey(n.key()))
+                this.transpositions.put(n.key(), n.g());
+            this.frontier.addLast(n);
+        }
+
+        @Override
+        public int countFrontier() {
+            return this.frontier.size();
+        }
+
+        /**
+         * Starts the next iteration if the current one is exhausted and some state was cut off by the bound.
+         */
+        @Override
+        public boolean frontierIsEmpty() {
+            if (this.frontier.isEmpty() && this.nextThreshold != Integer.MAX_VALUE) {
+                this.threshold = this.nextThreshold;
+                this.nextThreshold = Integer.MAX_VALUE;
+                this.iteration++;
+                this.transpositions = new LongIntHashMap(1 << 10);
+                this.transpositions.put(this.root.key(), this.root.g());
+                this.frontier.addLast(this.root);
+                System.err.format("IDA* iteration %d with bound %d\n", this.iteration, this.threshold);
+            }
+            return this.frontier.isEmpty();
+        }
+
+        @Override
+        public boolean inFrontier(long key) {
+            return false;
+        }
+
+        @Override
+        public String describeState(MAState n) {
+            return String.format("[f: %d, g: %d, h: %d, bound: %d]", this.heuristic.f(n), n.g(), this.heuristic.h(n), this.threshold);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("IDA* (node budget %,d) using %s", this.nodeBudget, this.heuristic.toString());
+        }
+    }
 }
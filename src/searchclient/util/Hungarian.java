@@ -0,0 +1,134 @@
+package searchclient.util;
+
+import java.util.Arrays;
+
+/**
+ * Minimum-cost perfect matching of rows to columns of a square cost matrix, by the Hungarian algorithm with
+ * potentials. A solved instance is immutable: changing the costs of one row gives a new instance that shares the other
+ * rows and is re-solved by a single augmentation from that row, in O(n^2) instead of O(n^3).
+ */
+public class Hungarian {
+    private final int n;
+    // Cost of matching row i to column j is cost[i][j]; rows are shared between instances and never modified
+    private final int[][] cost;
+    // Potentials and matching, 1-based as in the usual formulation: column j is matched to row match[j], 0 is a
+    // sentinel column
+    private final int[] u, v;
+    private final int[] match;
+    private final int total;
+
+    public Hungarian(int[][] cost) {
+        this.n = cost.length;
+        this.cost = cost.clone();
+        this.u = new int[this.n + 1];
+        this.v = new int[this.n + 1];
+        this.match = new int[this.n + 1];
+        for (int row = 1; row <= this.n; row++)
+            this.augment(row);
+        this.total = this.computeTotal();
+    }
+
+    private Hungarian(Hungarian other, int row, int[] rowCost) {
+        this.n = other.n;
+        this.cost = other.cost.clone();
+        this.cost[row] = rowCost;
+        this.u = other.u.clone();
+        this.v = other.v.clone();
+        this.match = other.match.clone();
+
+        // Free the row and lower its potential until every edge of the row is feasible again. The edges of the other
+        // matched pairs stay tight, so one augmentation restores an optimal matching.
+        for (int col = 1; col <= this.n; col++)
+            if (this.match[col] == row + 1)
+                this.match[col] = 0;
+        int min = Integer.MAX_VALUE;
+        for (int col = 1; col <= this.n; col++)
+            min = Math.min(min, rowCost[col - 1] - this.v[col]);
+        this.u[row + 1] = min;
+
+        this.augment(row + 1);
+        this.total = this.computeTotal();
+    }
+
+    /**
+     * Returns the optimal matching for the same costs except that the given row (0-based) costs rowCost.
+     */
+    public Hungarian withRow(int row, int[] rowCost) {
+        assert rowCost.length == this.n;
+        return new Hungarian(this, row, rowCost);
+    }
+
+    public int size() {
+        return this.n;
+    }
+
+    /**
+     * Total cost of the optimal matching.
+     */
+    public int cost() {
+        return this.total;
+    }
+
+    /**
+     * Returns the column (0-based) matched to the given row.
+     */
+    public int columnOf(int row) {
+        for (int col = 1; col <= this.n; col++)
+            if (this.match[col] == row + 1)
+                return col - 1;
+        return -1;
+    }
+
+    /**
+     * Matches the free row (1-based) along a shortest augmenting path, updating the potentials on the way.
+     */
+    private void augment(int row) {
+        int[] minv = new int[this.n + 1];
+        int[] way = new int[this.n + 1];
+        boolean[] used = new boolean[this.n + 1];
+        Arrays.fill(minv, Integer.MAX_VALUE);
+
+        this.match[0] = row;
+        int col0 = 0;
+        do {
+            used[col0] = true;
+            int row0 = this.match[col0];
+            int delta = Integer.MAX_VALUE, col1 = 0;
+            for (int col = 1; col <= this.n; col++) {
+                if (used[col])
+                    continue;
+                int reduced = this.cost[row0 - 1][col - 1] - this.u[row0] - this.v[col];
+                if (reduced < minv[col]) {
+                    minv[col] = reduced;
+                    way[col] = col0;
+                }
+                if (minv[col] < delta) {
+                    delta = minv[col];
+                    col1 = col;
+                }
+            }
+            for (int col = 0; col <= this.n; col++) {
+                if (used[col]) {
+                    this.u[this.match[col]] += delta;
+                    this.v[col] -= delta;
+                } else {
+                    minv[col] -= delta;
+                }
+            }
+            col0 = col1;
+        } while (this.match[col0] != 0);
+
+        do {
+            int col1 = way[col0];
+            this.match[col0] = this.match[col1];
+            col0 = col1;
+        } while (col0 != 0);
+    }
+
+    private int computeTotal() {
+        int total = 0;
+        for (int col = 1; col <= this.n; col++)
+            total += this.cost[this.match[col] - 1][col - 1];
+        return total;
+    }
+}
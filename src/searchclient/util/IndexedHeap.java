@@ -0,0 +1,145 @@
+package searchclient.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Binary min-heap whose elements are identified by a long key. An index from key to heap slot gives O(1) membership
+ * and lets an element be replaced by a better one (decrease-key) in O(log n).
+ *
+ * Sifting works like java.util.PriorityQueue, so elements that compare equal come out in the same order.
+ */
+public class IndexedHeap<E> {
+    private final Comparator<? super E> comparator;
+    private final LongIntHashMap index;
+    private Object[] elements;
+    private long[] keys;
+    private int size;
+
+    public IndexedHeap(Comparator<? super E> comparator) {
+        this.comparator = comparator;
+        this.index = new LongIntHashMap(1 << 10);
+        this.elements = new Object[1 << 10];
+        this.keys = new long[1 << 10];
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public boolean contains(long key) {
+        return this.index.containsKey(key);
+    }
+
+    /**
+     * Returns the element with the given key, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public E get(long key) {
+        int slot = this.index.get(key);
+        return slot == -1 ? null : (E) this.elements[slot];
+    }
+
+    /**
+     * Adds an element whose key is not in the heap yet.
+     */
+    public void add(long key, E element) {
+        assert !this.contains(key);
+
+        if (this.size == this.elements.length) {
+            this.elements = Arrays.copyOf(this.elements, 2 * this.size);
+            this.keys = Arrays.copyOf(this.keys, 2 * this.size);
+        }
+        this.siftUp(this.size++, key, element);
+    }
+
+    /**
+     * Replaces the element with the given key and restores the heap order, e.g. after a cheaper path to it was found.
+     */
+    public void replace(long key, E element) {
+        int slot = this.index.get(key);
+        assert slot != -1;
+
+        if (slot > 0 && this.compare(element, this.elements[(slot - 1) >>> 1]) < 0)
+            this.siftUp(slot, key, element);
+        else
+            this.siftDown(slot, key, element);
+    }
+
+    /**
+     * Returns the smallest element without removing it, or null if the heap is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        return this.size == 0 ? null : (E) this.elements[0];
+    }
+
+    /**
+     * Restores the heap order after the comparator has changed for all elements, in O(n).
+     */
+    public void reorder() {
+        for (int slot = (this.size >>> 1) - 1; slot >= 0; slot--)
+            this.siftDown(slot, this.keys[slot], this.elements[slot]);
+    }
+
+    /**
+     * Removes and returns the smallest element, or null if the heap is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        if (this.size == 0)
+            return null;
+
+        E result = (E) this.elements[0];
+        this.index.remove(this.keys[0]);
+
+        int last = --this.size;
+        Object element = this.elements[last];
+        long key = this.keys[last];
+        this.elements[last] = null;
+        if (last > 0)
+            this.siftDown(0, key, element);
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare(Object a, Object b) {
+        return this.comparator.compare((E) a, (E) b);
+    }
+
+    private void set(int slot, long key, Object element) {
+        this.elements[slot] = element;
+        this.keys[slot] = key;
+        this.index.put(key, slot);
+    }
+
+    private void siftUp(int slot, long key, Object element) {
+        while (slot > 0) {
+            int parent = (slot - 1) >>> 1;
+            if (this.compare(element, this.elements[parent]) >= 0)
+                break;
+            this.set(slot, this.keys[parent], this.elements[parent]);
+            slot = parent;
+        }
+        this.set(slot, key, element);
+    }
+
+    private void siftDown(int slot, long key, Object element) {
+        int half = this.size >>> 1;
+        while (slot < half) {
+            int child = 2 * slot + 1;
+            int right = child + 1;
+            if (right < this.size && this.compare(this.elements[child], this.elements[right]) > 0)
+                child = right;
+            if (this.compare(element, this.elements[child]) <= 0)
+                break;
+            this.set(slot, this.keys[child], this.elements[child]);
+            slot = child;
+        }
+        this.set(slot, key, element);
+    }
+}
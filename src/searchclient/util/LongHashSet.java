@@ -0,0 +1,127 @@
+package searchclient.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash set of primitive longs, used for sets of state keys so the search does not have to box every
+ * key or keep whole states around just to remember that they have been seen.
+ */
+public class LongHashSet {
+    private static final double MAX_LOAD = 0.5;
+
+    // 0 marks an empty slot, so the key 0 is tracked separately
+    private long[] table;
+    private boolean containsZero;
+    private int size;
+    private int shift;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    public LongHashSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / MAX_LOAD)) - 1) << 1;
+        this.table = new long[capacity];
+        this.shift = Long.numberOfLeadingZeros(capacity - 1);
+    }
+
+    private int slot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> this.shift);
+    }
+
+    public boolean contains(long key) {
+        if (key == 0)
+            return this.containsZero;
+
+        int mask = this.table.length - 1;
+        for (int i = this.slot(key); this.table[i] != 0; i = (i + 1) & mask)
+            if (this.table[i] == key)
+                return true;
+        return false;
+    }
+
+    /**
+     * Adds the key and returns true if it was not already in the set.
+     */
+    public boolean add(long key) {
+        if (key == 0) {
+            if (this.containsZero)
+                return false;
+            this.containsZero = true;
+            this.size++;
+            return true;
+        }
+
+        int mask = this.table.length - 1;
+        int i = this.slot(key);
+        for (; this.table[i] != 0; i = (i + 1) & mask)
+            if (this.table[i] == key)
+                return false;
+
+        this.table[i] = key;
+        if (++this.size > this.table.length * MAX_LOAD)
+            this.grow();
+        return true;
+    }
+
+    /**
+     * Removes the key and returns true if it was in the set.
+     */
+    public boolean remove(long key) {
+        if (key == 0) {
+            if (!this.containsZero)
+                return false;
+            this.containsZero = false;
+            this.size--;
+            return true;
+        }
+
+        int mask = this.table.length - 1;
+        int i = this.slot(key);
+        for (; this.table[i] != key; i = (i + 1) & mask)
+            if (this.table[i] == 0)
+                return false;
+
+        // Shift later entries of the probe sequence back, so no lookup is cut short by the hole
+        for (int j = (i + 1) & mask; this.table[j] != 0; j = (j + 1) & mask) {
+            int home = this.slot(this.table[j]);
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                this.table[i] = this.table[j];
+                i = j;
+            }
+        }
+        this.table[i] = 0;
+        this.size--;
+        return true;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(this.table, 0);
+        this.containsZero = false;
+        this.size = 0;
+    }
+
+    private void grow() {
+        long[] old = this.table;
+        this.table = new long[old.length * 2];
+        this.shift--;
+
+        int mask = this.table.length - 1;
+        for (long key : old) {
+            if (key == 0)
+                continue;
+            int i = this.slot(key);
+            while (this.table[i] != 0)
+                i = (i + 1) & mask;
+            this.table[i] = key;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package searchclient.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from primitive longs to non-negative ints.
+ */
+public class LongIntHashMap {
+    private static final double MAX_LOAD = 0.5;
+
+    private long[] keys;
+    // -1 marks an empty slot
+    private int[] values;
+    private int size;
+    private int shift;
+
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    public LongIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / MAX_LOAD)) - 1) << 1;
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        Arrays.fill(this.values, -1);
+        this.shift = Long.numberOfLeadingZeros(capacity - 1);
+    }
+
+    private int slot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> this.shift);
+    }
+
+    /**
+     * Returns the value of the key, or -1 if it is not in the map.
+     */
+    public int get(long key) {
+        int mask = this.keys.length - 1;
+        for (int i = this.slot(key); this.values[i] != -1; i = (i + 1) & mask)
+            if (this.keys[i] == key)
+                return this.values[i];
+        return -1;
+    }
+
+    public boolean containsKey(long key) {
+        return this.get(key) != -1;
+    }
+
+    public void put(long key, int value) {
+        assert value >= 0;
+
+        int mask = this.keys.length - 1;
+        int i = this.slot(key);
+        for (; this.values[i] != -1; i = (i + 1) & mask) {
+            if (this.keys[i] == key) {
+                this.values[i] = value;
+                return;
+            }
+        }
+
+        this.keys[i] = key;
+        this.values[i] = value;
+        if (++this.size > this.keys.length * MAX_LOAD)
+            this.grow();
+    }
+
+    /**
+     * Removes the key and returns its value, or -1 if it was not in the map.
+     */
+    public int remove(long key) {
+        int mask = this.keys.length - 1;
+        int i = this.slot(key);
+        for (; this.keys[i] != key || this.values[i] == -1; i = (i + 1) & mask)
+            if (this.values[i] == -1)
+                return -1;
+
+        int value = this.values[i];
+
+        // Shift later entries of the probe sequence back, so no lookup is cut short by the hole
+        for (int j = (i + 1) & mask; this.values[j] != -1; j = (j + 1) & mask) {
+            int home = this.slot(this.keys[j]);
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                this.keys[i] = this.keys[j];
+                this.values[i] = this.values[j];
+                i = j;
+            }
+        }
+        this.values[i] = -1;
+        this.size--;
+        return value;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    private void grow() {
+        long[] oldKeys = this.keys;
+        int[] oldValues = this.values;
+        this.keys = new long[oldKeys.length * 2];
+        this.values = new int[oldValues.length * 2];
+        Arrays.fill(this.values, -1);
+        this.shift--;
+
+        int mask = this.keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] == -1)
+                continue;
+            int i = this.slot(oldKeys[j]);
+            while (this.values[i] != -1)
+                i = (i + 1) & mask;
+            this.keys[i] = oldKeys[j];
+            this.values[i] = oldValues[j];
+        }
+    }
+}